@@ -0,0 +1,41 @@
+package com.ashwin.fri.stocks;
+
+import java.io.File;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.ChainedOptionsBuilder;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Runs the benchmarks with the GC profiler, which reports the allocation rate of each
+ * benchmark, and saves the results as JSON, so that the results of different builds
+ * can be compared. Every JMH command line option is accepted. Unless a result file is
+ * specified, the results are saved to target/jmh-[time].json.
+ * 
+ * Usage: java -jar target/benchmarks.jar [options] [benchmark...]
+ * 
+ * @author ashwin
+ */
+public class BenchmarkRunner {
+	
+	public static void main(String[] args) throws Exception {
+		CommandLineOptions cmd = new CommandLineOptions(args);
+		ChainedOptionsBuilder options = new OptionsBuilder()
+				.parent(cmd)
+				.addProfiler(GCProfiler.class);
+		
+		if(!cmd.getResultFormat().hasValue())
+			options.resultFormat(ResultFormatType.JSON);
+		if(!cmd.getResult().hasValue()) {
+			new File("target").mkdirs();
+			options.result("target/jmh-" + new SimpleDateFormat("yyyyMMdd-HHmmss").format(new Date()) + ".json");
+		}
+		
+		new Runner(options.build()).run();
+	}
+}
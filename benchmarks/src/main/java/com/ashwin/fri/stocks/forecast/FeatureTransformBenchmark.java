@@ -0,0 +1,94 @@
+package com.ashwin.fri.stocks.forecast;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures the transforms that are applied to every training sample of a forecast
+ * over a whole synthetic feature matrix: normalizing growth rates and recovering
+ * them, interpolating the missing growth rates of each row, and finding the largest
+ * absolute value of each row. The column statistics are computed once, up front.
+ * 
+ * @author ashwin
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Xmx4g")
+public class FeatureTransformBenchmark {
+	
+	/** Number of growth rates in the matrix. */
+	@Param({ "10000", "1000000", "10000000" })
+	public int cells;
+	
+	/** Fraction of missing growth rates. */
+	@Param({ "0.0", "0.2", "0.5" })
+	public double density;
+	
+	private double[][] _matrix;
+	private List<Statistic> _statistics;
+	private double[] _interpolated;
+	private int _rows;
+	
+	@Setup
+	public void setup() {
+		_rows = SyntheticMatrix.getRows(cells);
+		_matrix = SyntheticMatrix.generate(_rows, density);
+		_statistics = Forecast.getColumnStatistics(_matrix, _rows, 1, SyntheticMatrix.COLUMNS, 0);
+		_interpolated = new double[SyntheticMatrix.COLUMNS + 1];
+	}
+	
+	@Benchmark
+	public double normalize() {
+		double sum = 0.0;
+		for(int i = 0; i < _rows; i++)
+			for(int j = 0; j < SyntheticMatrix.COLUMNS; j++)
+				sum += _statistics.get(j).normalize(_matrix[i][j + 1]);
+		return sum;
+	}
+	
+	@Benchmark
+	public double raw() {
+		double sum = 0.0;
+		for(int i = 0; i < _rows; i++)
+			for(int j = 0; j < SyntheticMatrix.COLUMNS; j++)
+				sum += _statistics.get(j).raw(_matrix[i][j + 1]);
+		return sum;
+	}
+	
+	/**
+	 * Interpolates every row into a scratch vector, so the matrix keeps its missing
+	 * values from one invocation to the next.
+	 */
+	@Benchmark
+	public double interpolate() {
+		double sum = 0.0;
+		for(int i = 0; i < _rows; i++) {
+			Forecast.interpolate(_matrix[i], 1, _statistics, _interpolated, 0);
+			sum += _interpolated[0];
+		}
+		return sum;
+	}
+	
+	@Benchmark
+	public double getAbsoluteMaximum() {
+		double max = 0.0;
+		for(int i = 0; i < _rows; i++)
+			max = Math.max(max, Forecast.getAbsoluteMaximum(_matrix[i], 1, SyntheticMatrix.COLUMNS + 1));
+		return max;
+	}
+}
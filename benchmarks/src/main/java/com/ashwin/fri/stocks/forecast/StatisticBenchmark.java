@@ -0,0 +1,80 @@
+package com.ashwin.fri.stocks.forecast;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures how long it takes to summarize the columns of a synthetic feature matrix,
+ * both one column at a time with the statistic constructor and in parallel with
+ * Forecast.getColumnStatistics, with exact quartiles and with quantile sketches.
+ * 
+ * @author ashwin
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Xmx4g")
+public class StatisticBenchmark {
+	
+	/** Number of growth rates in the matrix. */
+	@Param({ "10000", "1000000", "10000000" })
+	public int cells;
+	
+	/** Fraction of missing growth rates. */
+	@Param({ "0.0", "0.2", "0.5" })
+	public double density;
+	
+	/** Capacity of the quantile sketch, or zero for exact quartiles. */
+	@Param({ "0", "200" })
+	public int accuracy;
+	
+	private double[][] _matrix;
+	private double[][] _columns;
+	private int _rows;
+	
+	@Setup
+	public void setup() {
+		_rows = SyntheticMatrix.getRows(cells);
+		_matrix = SyntheticMatrix.generate(_rows, density);
+		
+		// The statistic constructor takes the values of a column without missing values.
+		_columns = new double[SyntheticMatrix.COLUMNS][];
+		for(int j = 0; j < _columns.length; j++) {
+			double[] column = new double[_rows];
+			int count = 0;
+			for(int i = 0; i < _rows; i++)
+				if(!Double.isNaN(_matrix[i][j + 1]))
+					column[count++] = _matrix[i][j + 1];
+			_columns[j] = Arrays.copyOf(column, Math.max(1, count));
+		}
+	}
+	
+	@Benchmark
+	public List<Statistic> construct() {
+		List<Statistic> statistics = new ArrayList<Statistic>();
+		for(double[] column : _columns)
+			statistics.add((accuracy > 0) ? new Statistic(column, accuracy) : new Statistic(column));
+		return statistics;
+	}
+	
+	@Benchmark
+	public List<Statistic> getColumnStatistics() {
+		return Forecast.getColumnStatistics(_matrix, _rows, 1, SyntheticMatrix.COLUMNS, accuracy);
+	}
+}
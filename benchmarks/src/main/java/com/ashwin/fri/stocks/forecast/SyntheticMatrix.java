@@ -0,0 +1,56 @@
+package com.ashwin.fri.stocks.forecast;
+
+import java.util.Random;
+
+/**
+ * Generates synthetic feature rows in the layout of the training samples of a
+ * forecast: the growth rates of the input tags start at index one, with a slot for
+ * the average number of deviations before them and a slot for the filer status after
+ * them. Growth rates are normally distributed around one, with occasional outliers
+ * like the erroneous growth rates of real filings, and a fraction of them is missing.
+ * 
+ * @author ashwin
+ */
+class SyntheticMatrix {
+	
+	/** Number of input tags of a forecast. */
+	static final int COLUMNS = 15;
+	
+	/** Fraction of growth rates that are outliers. */
+	private static final double OUTLIERS = 0.01;
+	
+	/**
+	 * Returns the specified number of feature rows. The rows are generated from a fixed
+	 * seed, so every run benchmarks the same data.
+	 * 
+	 * @param rows
+	 * @param density fraction of missing (NaN) growth rates
+	 * @return
+	 */
+	static double[][] generate(int rows, double density) {
+		Random random = new Random(42);
+		double[][] matrix = new double[rows][COLUMNS + 2];
+		for(int i = 0; i < rows; i++) {
+			for(int j = 1; j <= COLUMNS; j++) {
+				if(random.nextDouble() < density)
+					matrix[i][j] = Double.NaN;
+				else if(random.nextDouble() < OUTLIERS)
+					matrix[i][j] = 1 + 50 * random.nextGaussian();
+				else
+					matrix[i][j] = 1 + 0.1 * random.nextGaussian();
+			}
+			matrix[i][COLUMNS + 1] = 1 + random.nextInt(5);
+		}
+		return matrix;
+	}
+	
+	/**
+	 * Returns the number of rows that holds the specified number of growth rates.
+	 * 
+	 * @param cells
+	 * @return
+	 */
+	static int getRows(int cells) {
+		return Math.max(1, cells / COLUMNS);
+	}
+}
@@ -0,0 +1,86 @@
+package com.ashwin.fri.stocks.neural;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures the throughput and the average latency of executing and training a
+ * neural network, for several widths of the input layer and shapes of the hidden
+ * layers. The smallest shape is the shape of the forecast networks. Networks have a
+ * single output, like the networks of a forecast, and are trained on random samples
+ * that are generated from a fixed seed.
+ * 
+ * @author ashwin
+ */
+@State(Scope.Thread)
+@BenchmarkMode({ Mode.Throughput, Mode.AverageTime })
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class NeuralNetworkBenchmark {
+	
+	/** Number of distinct samples, so that the inputs don't stay in registers. */
+	private static final int SAMPLES = 256;
+	
+	@Param({ "17", "64", "256" })
+	public int inputs;
+	
+	/** Sizes of the hidden layers, separated by "x". */
+	@Param({ "10x3", "32x16", "64x64x32" })
+	public String hidden;
+	
+	@Param({ "SGD", "ADAM" })
+	public Optimizer optimizer;
+	
+	private NeuralNetwork _network;
+	private double[][] _inputs, _targets;
+	private int _sample;
+	
+	@Setup
+	public void setup() {
+		String[] layers = hidden.split("x");
+		int[] nodes = new int[layers.length + 2];
+		nodes[0] = inputs;
+		for(int i = 0; i < layers.length; i++)
+			nodes[i + 1] = Integer.parseInt(layers[i]);
+		nodes[nodes.length - 1] = 1;
+		
+		_network = new NeuralNetwork(nodes);
+		_network.setOptimizer(optimizer);
+		
+		Random random = new Random(42);
+		_inputs = new double[SAMPLES][inputs];
+		_targets = new double[SAMPLES][1];
+		for(int i = 0; i < SAMPLES; i++) {
+			for(int j = 0; j < inputs; j++)
+				_inputs[i][j] = random.nextGaussian();
+			_targets[i][0] = random.nextDouble();
+		}
+	}
+	
+	@Benchmark
+	public double[] execute() {
+		_sample = (_sample + 1) % SAMPLES;
+		return _network.execute(_inputs[_sample]);
+	}
+	
+	@Benchmark
+	public NeuralNetwork backpropagate() {
+		_sample = (_sample + 1) % SAMPLES;
+		_network.backpropagate(_inputs[_sample], _targets[_sample], 0.01);
+		return _network;
+	}
+}
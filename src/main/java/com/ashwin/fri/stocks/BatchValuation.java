@@ -0,0 +1,314 @@
+package com.ashwin.fri.stocks;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.Writer;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.SplittableRandom;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.hibernate.Session;
+import org.hibernate.Transaction;
+import org.hibernate.criterion.DetachedCriteria;
+import org.hibernate.criterion.Order;
+import org.hibernate.criterion.Projections;
+import org.hibernate.criterion.Restrictions;
+import org.hibernate.criterion.Subqueries;
+
+import com.ashwin.fri.stocks.forecast.Forecast;
+import com.ashwin.fri.stocks.hibernate.HibernateConfig;
+import com.ashwin.fri.stocks.hibernate.Number;
+import com.ashwin.fri.stocks.hibernate.Submission;
+
+/**
+ * The batch valuation values every registrant of one or more industries at once,
+ * for example to reprice the whole market after the SEC releases a new data set.
+ * The latest submission of every registrant is loaded in a single query, and the
+ * registrants are valued in batches that run in parallel. Each batch loads the
+ * growth vectors and the current figures of its submissions in bulk, and predicts
+ * the growth of every submission with the forecast of its industry.
+ * 
+ * The current figures of a registrant are the latest values of the output tags of
+ * the forecast in its latest submission. Figures that the submission doesn't report
+ * are taken to be zero. The results are written as CSV in the order of the industries
+ * and registrants, and every batch is written as soon as the batches before it are.
+ * 
+ * If a number of scenarios is set, then every registrant is also valued with a Monte
+ * Carlo simulation, and the percentiles of its free cash flow are written as well.
+ * Each registrant has its own random stream, which is derived from the seed and its
+ * CIK, so the percentiles are reproducible.
+ * 
+ * Usage: BatchValuation [directory] [output] [sic...], where the directory contains
+ * the forecasts written by the training scheduler. The number of scenarios is set by
+ * the system property "scenarios".
+ * 
+ * @author ashwin
+ */
+public class BatchValuation {
+	
+	/** Number of registrants that are valued together. */
+	private static final int BATCH_SIZE = 500;
+	
+	private static final String HEADER = "sic,cik,name,adsh,filed,revenue,costs,taxes,investments," +
+			"assets,liabilities,fcf";
+	
+	private Map<Integer, Forecast> _forecasts;
+	private int _threads;
+	private int _scenarios = 0;
+	private long _seed;
+	
+	/**
+	 * Creates a batch valuation with the discounted cash flow forecast of each industry.
+	 * 
+	 * @param forecasts trained forecasts by industry
+	 * @param threads number of batches that are valued at the same time
+	 */
+	public BatchValuation(Map<Integer, Forecast> forecasts, int threads) {
+		_forecasts = forecasts;
+		_threads = threads;
+	}
+	
+	/**
+	 * Also values every registrant with a Monte Carlo simulation of the specified number
+	 * of scenarios, or only with the point estimate if the number is zero.
+	 * 
+	 * @param scenarios
+	 * @param seed
+	 */
+	public void setSimulation(int scenarios, long seed) {
+		_scenarios = scenarios;
+		_seed = seed;
+	}
+	
+	/**
+	 * Values every registrant of the specified industries, and writes the results to
+	 * the output.
+	 * 
+	 * @param sics
+	 * @param out
+	 * @return number of registrants that were valued
+	 * @throws IOException
+	 * @throws ExecutionException if a batch could not be valued
+	 * @throws InterruptedException
+	 */
+	public int value(List<Integer> sics, Writer out) throws IOException, ExecutionException,
+			InterruptedException {
+		// Step 1: Load the latest submission of every registrant, and split them into batches.
+		List<Submission> submissions = getLatestSubmissions(sics);
+		List<List<Submission>> batches = new ArrayList<List<Submission>>();
+		for(int i = 0; i < submissions.size(); i++) {
+			Submission submission = submissions.get(i);
+			if(i == 0 || batches.get(batches.size() - 1).size() == BATCH_SIZE ||
+					!submission.getRegistrant().getSic().equals(submissions.get(i-1).getRegistrant().getSic()))
+				batches.add(new ArrayList<Submission>());
+			batches.get(batches.size() - 1).add(submission);
+		}
+		
+		// Step 2: Value the batches in parallel, and write them out in order.
+		ExecutorService executor = Executors.newFixedThreadPool(_threads);
+		try {
+			List<Future<String>> futures = new ArrayList<Future<String>>();
+			for(final List<Submission> batch : batches) {
+				futures.add(executor.submit(new Callable<String>() {
+					@Override
+					public String call() {
+						return value(batch);
+					}
+				}));
+			}
+			
+			out.write(HEADER);
+			if(_scenarios > 0)
+				for(double percentile : MonteCarloValuation.PERCENTILES)
+					out.write(",p" + Math.round(100 * percentile));
+			out.write('\n');
+			for(Future<String> future : futures) {
+				out.write(future.get());
+				out.flush();
+			}
+			return submissions.size();
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+	
+	/**
+	 * Values a batch of submissions of the same industry, and returns their CSV rows.
+	 * 
+	 * @param batch
+	 * @return
+	 */
+	private String value(List<Submission> batch) {
+		Forecast forecast = _forecasts.get(batch.get(0).getRegistrant().getSic());
+		double[][] growths = forecast.predict(batch);
+		Map<String, double[]> figures = getFigures(batch, forecast);
+		MonteCarloValuation simulation = (_scenarios > 0) ? new MonteCarloValuation(forecast, _scenarios) : null;
+		
+		SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd");
+		StringBuilder rows = new StringBuilder();
+		for(int k = 0; k < batch.size(); k++) {
+			Submission submission = batch.get(k);
+			double[] f = figures.get(submission.getAdsh());
+			double fcf = DCFAnalysis.getFreeCashFlow(growths[k], f[0], f[1], f[2], f[3], f[4], f[5]);
+			
+			rows.append(submission.getRegistrant().getSic()).append(',')
+				.append(submission.getRegistrant().getCik()).append(',')
+				.append(quote(submission.getRegistrant().getName())).append(',')
+				.append(submission.getAdsh()).append(',')
+				.append(format.format(submission.getFilingDate()));
+			for(double figure : f)
+				rows.append(',').append(figure);
+			rows.append(',').append(fcf);
+			
+			if(simulation != null) {
+				SplittableRandom random = new SplittableRandom(_seed + submission.getRegistrant().getCik());
+				for(double percentile : simulation.simulate(growths[k], f, MonteCarloValuation.PERCENTILES, random))
+					rows.append(',').append(percentile);
+			}
+			rows.append('\n');
+		}
+		return rows.toString();
+	}
+	
+	/**
+	 * Returns the current figures of every submission, which are the latest values of
+	 * the output tags of the forecast. Figures that a submission doesn't report are zero.
+	 * 
+	 * @param batch
+	 * @param forecast
+	 * @return figures of each submission by adsh
+	 */
+	static Map<String, double[]> getFigures(List<Submission> batch, Forecast forecast) {
+		List<String> names = new ArrayList<String>();
+		for(int j = 0; j < forecast.getOutputTags().size(); j++)
+			names.add(forecast.getOutputTags().get(j).getName());
+		
+		// The numbers of each tag are ordered by duration and then from the latest to
+		// the earliest end date, so the first number of each tag is the current figure.
+		Map<String, double[]> figures = new HashMap<String, double[]>();
+		for(Map.Entry<String, List<Number>> numbers : Forecast.getNumbers(batch, forecast.getOutputTags()).entrySet()) {
+			double[] f = new double[names.size()];
+			boolean[] found = new boolean[names.size()];
+			for(Number number : numbers.getValue()) {
+				int j = names.indexOf(number.getTag().getName());
+				if(!found[j]) {
+					f[j] = number.getValue().doubleValue();
+					found[j] = true;
+				}
+			}
+			figures.put(numbers.getKey(), f);
+		}
+		return figures;
+	}
+	
+	/**
+	 * Returns the latest detailed 10-K or 10-Q submission of every registrant in the
+	 * industries, ordered by industry and registrant. If a registrant made several
+	 * submissions on its latest filing date, then the one accepted last is used.
+	 * 
+	 * @param sics
+	 * @return
+	 */
+	@SuppressWarnings("unchecked")
+	static List<Submission> getLatestSubmissions(List<Integer> sics) {
+		Session session = HibernateConfig.FACTORY.openSession();
+		Transaction tx  = session.beginTransaction();
+		
+		DetachedCriteria latest = DetachedCriteria.forClass(Submission.class, "t")
+				.add(Restrictions.eqProperty("t.registrant", "s.registrant"))
+				.add(Restrictions.eq("t.detailed", true))
+				.add(Restrictions.or(
+						Restrictions.eq("t.form", "10-K"),
+						Restrictions.eq("t.form", "10-K/A"),
+						Restrictions.eq("t.form", "10-Q"),
+						Restrictions.eq("t.form", "10-Q/A")))
+				.setProjection(Projections.max("t.filingDate"));
+		
+		List<Submission> submissions = session.createCriteria(Submission.class, "s")
+				.createAlias("s.registrant", "registrant")
+				.add(Restrictions.in("registrant.sic", sics))
+				.add(Restrictions.eq("s.detailed", true))
+				.add(Restrictions.or(
+						Restrictions.eq("s.form", "10-K"),
+						Restrictions.eq("s.form", "10-K/A"),
+						Restrictions.eq("s.form", "10-Q"),
+						Restrictions.eq("s.form", "10-Q/A")))
+				.add(Subqueries.propertyEq("s.filingDate", latest))
+				.addOrder(Order.asc("registrant.sic"))
+				.addOrder(Order.asc("registrant.cik"))
+				.addOrder(Order.desc("s.acceptedDate"))
+				.list();
+		
+		tx.rollback();
+		session.close();
+		
+		List<Submission> distinct = new ArrayList<Submission>();
+		for(Submission submission : submissions)
+			if(distinct.isEmpty() || !distinct.get(distinct.size() - 1).getRegistrant().equals(submission.getRegistrant()))
+				distinct.add(submission);
+		return distinct;
+	}
+	
+	private static String quote(String value) {
+		return "\"" + value.replace("\"", "\"\"") + "\"";
+	}
+	
+	/**
+	 * Values every registrant of the industries whose forecasts are in the directory,
+	 * or of the specified industries.
+	 * 
+	 * @param args
+	 * @throws Exception
+	 */
+	public static void main(String[] args) throws Exception {
+		File directory = new File((args.length > 0) ? args[0] : "forecasts");
+		File output    = new File((args.length > 1) ? args[1] : "valuations.csv");
+		int scenarios  = Integer.getInteger("scenarios", 0);
+		
+		Map<Integer, Forecast> forecasts = new TreeMap<Integer, Forecast>();
+		for(File file : directory.listFiles()) {
+			if(!file.getName().endsWith(".forecast"))
+				continue;
+			
+			ObjectInputStream in = new ObjectInputStream(new FileInputStream(file));
+			try {
+				Forecast forecast = (Forecast) in.readObject();
+				forecasts.put(forecast.getSic(), forecast);
+			} finally {
+				in.close();
+			}
+		}
+		
+		List<Integer> sics = new ArrayList<Integer>();
+		for(int i = 2; i < args.length; i++)
+			sics.add(Integer.parseInt(args[i]));
+		if(sics.isEmpty())
+			sics.addAll(forecasts.keySet());
+		sics.retainAll(forecasts.keySet());
+		
+		long start = System.currentTimeMillis();
+		Writer out = new BufferedWriter(new FileWriter(output));
+		try {
+			BatchValuation valuation = new BatchValuation(forecasts, HibernateConfig.POOL_SIZE);
+			valuation.setSimulation(scenarios, 0);
+			int valued = valuation.value(sics, out);
+			System.out.println("Valued " + valued + " registrants in " + sics.size() + " industries in " +
+					(System.currentTimeMillis() - start) / 1000 + "s");
+		} finally {
+			out.close();
+		}
+	}
+}
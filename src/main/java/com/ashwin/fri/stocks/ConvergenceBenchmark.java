@@ -0,0 +1,94 @@
+package com.ashwin.fri.stocks;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+import com.ashwin.fri.stocks.forecast.Forecast;
+import com.ashwin.fri.stocks.forecast.TrainingSet;
+import com.ashwin.fri.stocks.neural.NeuralNetwork;
+import com.ashwin.fri.stocks.neural.Optimizer;
+
+/**
+ * Compares how quickly each optimizer converges on the training data of a
+ * forecast. Every fifth sample is held out for validation. Each optimizer
+ * starts from the exact same initial weights and trains the network of the
+ * first output tag for a fixed number of epochs. The benchmark reports the
+ * number of epochs each optimizer needs to come within 5% of the lowest
+ * validation error that any optimizer reached.
+ * 
+ * Usage: ConvergenceBenchmark [sic] [epochs]
+ * 
+ * @author ashwin
+ */
+public class ConvergenceBenchmark {
+	
+	private static final Optimizer[] OPTIMIZERS = {
+		Optimizer.SGD, Optimizer.MOMENTUM, Optimizer.NESTEROV, Optimizer.RMSPROP, Optimizer.ADAM
+	};
+	
+	/** The learning rate of each optimizer. Adaptive optimizers need smaller rates. */
+	private static final double[] RATES = { 1.0, 0.1, 0.1, 0.01, 0.01 };
+	
+	public static void main(String[] args) throws Exception {
+		int sic    = (args.length > 0) ? Integer.parseInt(args[0]) : 1311;
+		int epochs = (args.length > 1) ? Integer.parseInt(args[1]) : 100;
+		
+		Forecast forecast = new Forecast(sic, 15, "Revenues");
+		TrainingSet set = forecast.getTrainingSet(new Date(0), new Date(System.currentTimeMillis()), 0.90);
+		
+		List<double[]> ti = new ArrayList<double[]>(), to = new ArrayList<double[]>();
+		List<double[]> vi = new ArrayList<double[]>(), vo = new ArrayList<double[]>();
+		for(int i = 0; i < set.size(); i++) {
+			if(Double.isNaN(set.getTargets()[i][0]))
+				continue;
+			
+			double[] target = new double[] { set.getTargets()[i][0] };
+			(i % 5 == 0 ? vi : ti).add(set.getInputs()[i]);
+			(i % 5 == 0 ? vo : to).add(target);
+		}
+		
+		System.out.println("Training on " + ti.size() + " samples, validating on " + vi.size());
+		
+		NeuralNetwork template = new NeuralNetwork(set.getInputs()[0].length, 10, 3, 1);
+		double[][] errors = new double[OPTIMIZERS.length][epochs];
+		double best = Double.MAX_VALUE;
+		long[] times = new long[OPTIMIZERS.length];
+		
+		for(int k = 0; k < OPTIMIZERS.length; k++) {
+			NeuralNetwork network = new NeuralNetwork(template);
+			network.setOptimizer(OPTIMIZERS[k]);
+			
+			long start = System.nanoTime();
+			for(int e = 0; e < epochs; e++) {
+				for(int i = 0; i < ti.size(); i++)
+					network.backpropagate(ti.get(i), to.get(i), RATES[k]);
+				
+				double error = 0.0;
+				for(int i = 0; i < vi.size(); i++) {
+					double diff = network.execute(vi.get(i))[0] - vo.get(i)[0];
+					error += diff * diff;
+				}
+				errors[k][e] = error / vi.size();
+				best = Math.min(best, errors[k][e]);
+			}
+			times[k] = System.nanoTime() - start;
+		}
+		
+		double target = best * 1.05;
+		System.out.println(String.format("Target validation error: %.6f", target));
+		System.out.println(String.format("%-10s %10s %12s %10s", "optimizer", "epochs", "best error", "time (ms)"));
+		for(int k = 0; k < OPTIMIZERS.length; k++) {
+			int reached = -1;
+			double min = Double.MAX_VALUE;
+			for(int e = 0; e < epochs; e++) {
+				if(reached < 0 && errors[k][e] <= target)
+					reached = e + 1;
+				min = Math.min(min, errors[k][e]);
+			}
+			
+			System.out.println(String.format("%-10s %10s %12.6f %10d", OPTIMIZERS[k],
+					(reached < 0) ? "> " + epochs : String.valueOf(reached), min, times[k] / 1000000));
+		}
+	}
+}
@@ -19,11 +19,16 @@ import com.ashwin.fri.stocks.hibernate.Submission;
  * intrinsic "fair value" of the company, which can be further processed
  * to determine the optimal share price for a company.
  * 
+ * Valuations are cached in a valuation cache that is shared by every analysis, so
+ * repeated valuations of a registrant with the same figures are served from memory.
+ * 
  * @author ashwin
  *
  */
 public class DCFAnalysis {
 	
+	private static final ValuationCache VALUATIONS = new ValuationCache();
+	
 	private Forecast _fcf;
 	
 	public DCFAnalysis(int sic) throws Exception {
@@ -33,9 +38,20 @@ public class DCFAnalysis {
 		
 		Date start = new Date(0);
 		Date end   = new Date(System.currentTimeMillis());
+		_fcf.setEarlyStopping(50, 0.2, 3);
 		_fcf.train(start, end, 0.70, 1.2);
 	}
 	
+	/**
+	 * Creates an analysis from a forecast that has already been trained, for example
+	 * by the training scheduler.
+	 * 
+	 * @param fcf forecast of the components of free cash flow
+	 */
+	public DCFAnalysis(Forecast fcf) {
+		_fcf = fcf;
+	}
+	
 	/**
 	 * Performs a valuation of the specified submission. The function attempts
 	 * to determine the present value by using the forecasting engines to predict
@@ -47,17 +63,15 @@ public class DCFAnalysis {
 	public double value(Registrant registrant, double revenue, double costs, double taxes,
 			double netInvestments, double assets, double liabilities) {
 		
-		Session session = HibernateConfig.FACTORY.openSession();
-		Transaction tx  = session.beginTransaction();
+		// The version is read once, before the networks run, so that a valuation by the
+		// weights before an update is never cached under the version after it.
+		double[] figures = { revenue, costs, taxes, netInvestments, assets, liabilities };
+		long version = _fcf.getVersion();
+		Double cached = VALUATIONS.get(registrant.getCik(), version, figures);
+		if(cached != null)
+			return cached;
 		
-		Submission submission = (Submission) session.createCriteria(Submission.class)
-				.add(Restrictions.eq("registrant", registrant))
-				.addOrder(Order.desc("filingDate"))
-				.setMaxResults(1)
-				.uniqueResult();
-		
-		tx.rollback();
-		session.close();
+		Submission submission = getLatestSubmission(registrant);
 		
 		// Step 1: Determine Free Cash Flow (FCF).
 		// FCF = Revenue - Operating Costs - Taxes - Net Investments - Net Change in Working Capital
@@ -76,19 +90,184 @@ public class DCFAnalysis {
 		System.out.println("Predicted Assets: " + cAssets);
 		System.out.println("Predicted Liabilities: " + cLiabilities);
 		
-		double fcf = cRevenue - cCosts - cTaxes - cNetInvestments - 
-				((cAssets - cLiabilities) - (assets - liabilities));
+		double fcf = getFreeCashFlow(cRevenue, cCosts, cTaxes, cNetInvestments, cAssets, cLiabilities,
+				assets, liabilities);
 		
+		VALUATIONS.put(registrant.getCik(), submission.getAdsh(), version, figures, fcf);
 		return fcf;
+	}
+	
+	/**
+	 * Performs a multi-period valuation of the specified registrant. The forecast projects
+	 * the growth of the components of free cash flow over the specified number of
+	 * quarters, and the components are compounded quarter by quarter from their current
+	 * values. The free cash flow of every quarter is discounted at the weighted average
+	 * cost of capital, and the cash flows after the last quarter are valued with the
+	 * Gordon growth model. The rates are annual, and are converted to quarterly rates.
+	 * 
+	 * @param registrant
+	 * @param revenue
+	 * @param costs
+	 * @param taxes
+	 * @param netInvestments
+	 * @param assets
+	 * @param liabilities
+	 * @param quarters number of quarters to project
+	 * @param wacc annual weighted average cost of capital
+	 * @param terminalGrowth annual long term growth rate of the free cash flow
+	 * @return present value of the free cash flows
+	 */
+	public double value(Registrant registrant, double revenue, double costs, double taxes,
+			double netInvestments, double assets, double liabilities, int quarters, double wacc,
+			double terminalGrowth) {
+		// The figures of the cache key include the parameters of the projection, so they
+		// never collide with the figures of a single period valuation.
+		double[] figures = { revenue, costs, taxes, netInvestments, assets, liabilities, quarters, wacc,
+				terminalGrowth };
+		long version = _fcf.getVersion();
+		Double cached = VALUATIONS.get(registrant.getCik(), version, figures);
+		if(cached != null)
+			return cached;
 		
-		// Step 2: Determine the Weighted Average Cost of Capital (WACC)
-		// The WACC is the weighted average of the cost of equity and the cost of debt
-		// Cost of Equity = CAPM = Risk Free Rate + Beta * Equity Market Risk Premium
-		// Cost of Debt   = Rate that the company is paying on its debt after tax
-		// WACC = Cost of Equity * Total Equity / Total Value + Cost of Debt * Debt / Total Value,
-		// where total value = total equity + total debt.
+		Submission submission = getLatestSubmission(registrant);
+		double[][] growths = _fcf.project(submission, quarters);
+		double value = getPresentValue(growths, figures, wacc, terminalGrowth);
 		
-		// Step 3: Calculate the Terminal Value
-		// Gordon Growth Model: Terminal Value = Final Projected Year Cash Flow * Long Term Cash Flow Growth Rate
+		VALUATIONS.put(registrant.getCik(), submission.getAdsh(), version, figures, value);
+		return value;
+	}
+	
+	/**
+	 * Returns the valuation cache that is shared by every analysis, for example to
+	 * listen to an incremental trainer.
+	 * 
+	 * @return
+	 */
+	public static ValuationCache getValuationCache() {
+		return VALUATIONS;
+	}
+	
+	public Forecast getForecast() {
+		return _fcf;
+	}
+	
+	/**
+	 * Returns the present value of the free cash flows of a projection. The figures are
+	 * compounded by the projected growth rates of each quarter, the free cash flow of
+	 * each quarter is discounted at the weighted average cost of capital, and the terminal
+	 * value of the final quarter is added. If the cost of capital doesn't exceed the
+	 * terminal growth rate, then the terminal value is unbounded and the result is
+	 * infinite.
+	 * 
+	 * @param growths projected growth rates of each quarter
+	 * @param figures current revenue, costs, taxes, net investments, assets and liabilities
+	 * @param wacc annual weighted average cost of capital
+	 * @param terminalGrowth annual long term growth rate of the free cash flow
+	 * @return
+	 */
+	public static double getPresentValue(double[][] growths, double[] figures, double wacc, double terminalGrowth) {
+		// Step 1: Convert the annual rates to quarterly rates, because the growth rates
+		// that the forecast predicts are quarter over quarter.
+		double r = Math.pow(1 + wacc, 0.25) - 1;
+		double g = Math.pow(1 + terminalGrowth, 0.25) - 1;
+		
+		// Step 2: Compound the figures and discount the free cash flow of every quarter.
+		double revenue = figures[0], costs = figures[1], taxes = figures[2], netInvestments = figures[3];
+		double assets = figures[4], liabilities = figures[5];
+		double value = 0.0, discount = 1.0, fcf = 0.0;
+		for(int q = 0; q < growths.length; q++) {
+			double[] growth = growths[q];
+			fcf = getFreeCashFlow(growth, revenue, costs, taxes, netInvestments, assets, liabilities);
+			revenue 	   *= growth[0];
+			costs 		   *= growth[1];
+			taxes 		   *= growth[2];
+			netInvestments *= growth[3];
+			assets 		   *= growth[4];
+			liabilities    *= growth[5];
+			
+			discount /= 1 + r;
+			value += fcf * discount;
+		}
+		
+		// Step 3: Calculate the Terminal Value with the Gordon Growth Model.
+		// Terminal Value = Final Projected Cash Flow * (1 + Long Term Growth Rate) / (WACC - Long Term Growth Rate)
+		if(r <= g)
+			return Double.POSITIVE_INFINITY;
+		return value + fcf * (1 + g) / (r - g) * discount;
+	}
+	
+	/**
+	 * Returns the Weighted Average Cost of Capital (WACC), which is the weighted average
+	 * of the cost of equity and the after tax cost of debt.
+	 * Cost of Equity = CAPM = Risk Free Rate + Beta * Equity Market Risk Premium
+	 * Cost of Debt   = Rate that the company is paying on its debt after tax
+	 * WACC = Cost of Equity * Total Equity / Total Value + Cost of Debt * Debt / Total Value,
+	 * where total value = total equity + total debt.
+	 * 
+	 * @param riskFree risk free rate
+	 * @param beta
+	 * @param premium equity market risk premium
+	 * @param debtRate rate that the company is paying on its debt before tax
+	 * @param taxRate
+	 * @param equity total equity
+	 * @param debt total debt
+	 * @return
+	 */
+	public static double getWeightedAverageCostOfCapital(double riskFree, double beta, double premium,
+			double debtRate, double taxRate, double equity, double debt) {
+		double costOfEquity = riskFree + beta * premium;
+		double costOfDebt   = debtRate * (1 - taxRate);
+		double total = equity + debt;
+		return costOfEquity * equity / total + costOfDebt * debt / total;
+	}
+	
+	/**
+	 * Returns the latest submission of the registrant.
+	 * 
+	 * @param registrant
+	 * @return
+	 */
+	private static Submission getLatestSubmission(Registrant registrant) {
+		Session session = HibernateConfig.FACTORY.openSession();
+		Transaction tx  = session.beginTransaction();
+		
+		Submission submission = (Submission) session.createCriteria(Submission.class)
+				.add(Restrictions.eq("registrant", registrant))
+				.addOrder(Order.desc("filingDate"))
+				.setMaxResults(1)
+				.uniqueResult();
+		
+		tx.rollback();
+		session.close();
+		return submission;
+	}
+	
+	/**
+	 * Returns the projected free cash flow of a company from the predicted growth rates
+	 * of its revenue, costs, taxes, net investments, current assets and current
+	 * liabilities, which are in the order of the outputs of the forecast.
+	 * 
+	 * @param growths predicted growth rates
+	 * @param revenue
+	 * @param costs
+	 * @param taxes
+	 * @param netInvestments
+	 * @param assets
+	 * @param liabilities
+	 * @return
+	 */
+	public static double getFreeCashFlow(double[] growths, double revenue, double costs, double taxes,
+			double netInvestments, double assets, double liabilities) {
+		return getFreeCashFlow(growths[0] * revenue, growths[1] * costs, growths[2] * taxes,
+				growths[3] * netInvestments, growths[4] * assets, growths[5] * liabilities, assets, liabilities);
+	}
+	
+	/**
+	 * FCF = Revenue - Operating Costs - Taxes - Net Investments - Net Change in Working Capital
+	 */
+	private static double getFreeCashFlow(double cRevenue, double cCosts, double cTaxes, double cNetInvestments,
+			double cAssets, double cLiabilities, double assets, double liabilities) {
+		return cRevenue - cCosts - cTaxes - cNetInvestments - 
+				((cAssets - cLiabilities) - (assets - liabilities));
 	}
 }
@@ -0,0 +1,212 @@
+package com.ashwin.fri.stocks;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.SplittableRandom;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+import com.ashwin.fri.stocks.forecast.Forecast;
+import com.ashwin.fri.stocks.forecast.Statistic;
+
+/**
+ * The Monte Carlo valuation turns the point estimate of a discounted cash flow
+ * analysis into a distribution. Every scenario draws the growth of the revenue,
+ * costs, taxes, net investments, current assets and current liabilities around
+ * the predicted growth, and calculates the free cash flow of the scenario. The
+ * valuation reports percentiles of the free cash flow over all scenarios.
+ * 
+ * The forecast doesn't record the errors of its predictions, so the growth of each
+ * output is drawn with the spread and shape of the growth of that output over the
+ * training samples, scaled by the dispersion. The standard deviation, skewness and
+ * kurtosis of the output are turned into quantiles with the Cornish-Fisher
+ * expansion, which is accurate for moderately skewed and heavy tailed growth. The
+ * outputs are drawn independently of each other.
+ * 
+ * Every simulation is reproducible from its seed, regardless of the number of
+ * threads, because the scenarios are split into chunks whose random streams are
+ * split from the seed in a fixed order.
+ * 
+ * @author ashwin
+ */
+public class MonteCarloValuation {
+	
+	/** Percentiles that are reported by default. */
+	public static final double[] PERCENTILES = { 0.05, 0.25, 0.50, 0.75, 0.95 };
+	
+	/** Number of scenarios below which a simulation isn't split any further. */
+	private static final int CHUNK_SIZE = 4096;
+	
+	private final double[] _stdev, _skewness, _kurtosis;
+	private final int _scenarios;
+	private double _dispersion = 1.0;
+	
+	/**
+	 * Creates a valuation with the distributions of the outputs of the trained forecast.
+	 * 
+	 * @param forecast trained forecast of the components of free cash flow
+	 * @param scenarios number of scenarios of every simulation
+	 */
+	public MonteCarloValuation(Forecast forecast, int scenarios) {
+		List<Statistic> statistics = forecast.getOutputStatistics();
+		if(statistics == null)
+			throw new IllegalStateException("The forecast has not been trained");
+		
+		_scenarios = scenarios;
+		_stdev = new double[statistics.size()];
+		_skewness = new double[statistics.size()];
+		_kurtosis = new double[statistics.size()];
+		for(int j = 0; j < statistics.size(); j++) {
+			_stdev[j] = statistics.get(j).getStandardDeviation();
+			_skewness[j] = statistics.get(j).getSkewness();
+			_kurtosis[j] = statistics.get(j).getKurtosis() - 3;
+		}
+	}
+	
+	/**
+	 * Scales the spread of the drawn growth rates. A dispersion below one narrows the
+	 * distributions, for forecasts that are known to be more accurate than the spread
+	 * of their training data.
+	 * 
+	 * @param dispersion
+	 */
+	public void setDispersion(double dispersion) {
+		_dispersion = dispersion;
+	}
+	
+	public int getScenarios() {
+		return _scenarios;
+	}
+	
+	/**
+	 * Simulates every scenario on the calling thread, and returns the free cash flow at
+	 * each of the percentiles. This is the variant for valuing many companies in
+	 * parallel, where each thread simulates its own companies.
+	 * 
+	 * @param growths predicted growth rates
+	 * @param figures current revenue, costs, taxes, net investments, assets and liabilities
+	 * @param percentiles
+	 * @param random
+	 * @return
+	 */
+	public double[] simulate(double[] growths, double[] figures, double[] percentiles, SplittableRandom random) {
+		double[] fcf = new double[_scenarios];
+		simulate(growths, figures, fcf, 0, _scenarios, random);
+		return getPercentiles(fcf, percentiles);
+	}
+	
+	/**
+	 * Simulates the scenarios in parallel on the specified pool, and returns the free
+	 * cash flow at each of the percentiles.
+	 * 
+	 * @param growths predicted growth rates
+	 * @param figures current revenue, costs, taxes, net investments, assets and liabilities
+	 * @param percentiles
+	 * @param seed
+	 * @param pool
+	 * @return
+	 */
+	public double[] simulate(double[] growths, double[] figures, double[] percentiles, long seed,
+			ForkJoinPool pool) {
+		double[] fcf = new double[_scenarios];
+		pool.invoke(new Chunk(growths, figures, fcf, 0, _scenarios, new SplittableRandom(seed)));
+		return getPercentiles(fcf, percentiles);
+	}
+	
+	/**
+	 * Simulates the scenarios from the start index to the end index, and writes the free
+	 * cash flow of each scenario into the array.
+	 * 
+	 * @param growths
+	 * @param figures
+	 * @param fcf
+	 * @param from
+	 * @param to
+	 * @param random
+	 */
+	private void simulate(double[] growths, double[] figures, double[] fcf, int from, int to,
+			SplittableRandom random) {
+		double[] drawn = new double[growths.length];
+		for(int s = from; s < to; s++) {
+			for(int j = 0; j < growths.length; j++) {
+				double w = getQuantile(getGaussian(random), _skewness[j], _kurtosis[j]);
+				drawn[j] = growths[j] + _dispersion * _stdev[j] * w;
+			}
+			fcf[s] = DCFAnalysis.getFreeCashFlow(drawn, figures[0], figures[1], figures[2], figures[3],
+					figures[4], figures[5]);
+		}
+	}
+	
+	/**
+	 * Returns the Cornish-Fisher expansion of a standard normal quantile, which is the
+	 * corresponding standardized quantile of a distribution with the specified skewness
+	 * and excess kurtosis.
+	 * 
+	 * @param z standard normal quantile
+	 * @param skewness
+	 * @param excess excess kurtosis
+	 * @return
+	 */
+	static double getQuantile(double z, double skewness, double excess) {
+		double z2 = z * z, z3 = z2 * z;
+		return z + (z2 - 1) * skewness / 6 + (z3 - 3 * z) * excess / 24 -
+				(2 * z3 - 5 * z) * skewness * skewness / 36;
+	}
+	
+	/**
+	 * Returns a standard normal value with the Box-Muller transform, because the
+	 * splittable random generator can't draw Gaussian values itself.
+	 * 
+	 * @param random
+	 * @return
+	 */
+	private static double getGaussian(SplittableRandom random) {
+		double u = 1.0 - random.nextDouble();
+		return Math.sqrt(-2 * Math.log(u)) * Math.cos(2 * Math.PI * random.nextDouble());
+	}
+	
+	private static double[] getPercentiles(double[] values, double[] percentiles) {
+		Arrays.sort(values);
+		double[] out = new double[percentiles.length];
+		for(int i = 0; i < percentiles.length; i++)
+			out[i] = values[(int) Math.round(percentiles[i] * (values.length - 1))];
+		return out;
+	}
+	
+	/**
+	 * A range of scenarios that is split in half until it is small enough. The random
+	 * stream of the second half is split from the stream of the first half before
+	 * either half runs, so the streams don't depend on the order the halves run in.
+	 */
+	private class Chunk extends RecursiveAction {
+		
+		private static final long serialVersionUID = 1L;
+		
+		private final double[] _growths, _figures, _fcf;
+		private final int _from, _to;
+		private final SplittableRandom _random;
+		
+		private Chunk(double[] growths, double[] figures, double[] fcf, int from, int to,
+				SplittableRandom random) {
+			_growths = growths;
+			_figures = figures;
+			_fcf = fcf;
+			_from = from;
+			_to = to;
+			_random = random;
+		}
+		
+		@Override
+		protected void compute() {
+			if(_to - _from <= CHUNK_SIZE) {
+				simulate(_growths, _figures, _fcf, _from, _to, _random);
+				return;
+			}
+			
+			int mid = (_from + _to) >>> 1;
+			SplittableRandom split = _random.split();
+			invokeAll(new Chunk(_growths, _figures, _fcf, _from, mid, _random),
+					new Chunk(_growths, _figures, _fcf, mid, _to, split));
+		}
+	}
+}
@@ -0,0 +1,100 @@
+package com.ashwin.fri.stocks;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import com.ashwin.fri.stocks.forecast.QuantileSketch;
+import com.ashwin.fri.stocks.forecast.Statistic;
+
+/**
+ * Compares the quartiles estimated by the quantile sketch with the exact quartiles
+ * of synthetic growth rates. Growth rates are heavy tailed, so the samples are drawn
+ * from a Student's t distribution with three degrees of freedom. For every accuracy,
+ * the tester reports the worst rank error of the quartiles over several samples, the
+ * number of values the sketch retains, and how far the outlier fences and the mean of
+ * the sketched statistic are from those of the exact statistic. The tester fails if
+ * the rank error of any quartile exceeds 3 / k.
+ * 
+ * Usage: SketchTester [size] [trials]
+ * 
+ * @author ashwin
+ */
+public class SketchTester {
+	
+	private static final int[] ACCURACIES = { 50, 100, 200, 400, 800 };
+	
+	public static void main(String[] args) {
+		int size   = (args.length > 0) ? Integer.parseInt(args[0]) : 1000000;
+		int trials = (args.length > 1) ? Integer.parseInt(args[1]) : 5;
+		
+		boolean passed = true;
+		System.out.println(String.format("%-6s %10s %10s %12s %12s %12s", "k", "rank error", "retained",
+				"lower fence", "upper fence", "mean"));
+		for(int k : ACCURACIES) {
+			double rank = 0.0, lower = 0.0, upper = 0.0, mean = 0.0;
+			int retained = 0;
+			for(int t = 0; t < trials; t++) {
+				double[] sample = getSample(size, new Random(t));
+				double[] sorted = sample.clone();
+				Arrays.sort(sorted);
+				
+				QuantileSketch sketch = new QuantileSketch(k);
+				for(double value : sample)
+					sketch.add(value);
+				rank = Math.max(rank, getRankError(sorted, sketch.getQuantile(0.25), 0.25));
+				rank = Math.max(rank, getRankError(sorted, sketch.getQuantile(0.75), 0.75));
+				retained = Math.max(retained, sketch.getRetained());
+				
+				Statistic exact = new Statistic(sample);
+				Statistic approx = new Statistic(sample, k);
+				lower = Math.max(lower, Math.abs(exact.getLowerFence() - approx.getLowerFence()));
+				upper = Math.max(upper, Math.abs(exact.getUpperFence() - approx.getUpperFence()));
+				mean  = Math.max(mean, Math.abs(exact.getMean() - approx.getMean()));
+			}
+			
+			passed &= rank <= 3.0 / k;
+			System.out.println(String.format("%-6d %10.6f %10d %12.6f %12.6f %12.6f", k, rank, retained,
+					lower, upper, mean));
+		}
+		
+		System.out.println(passed ? "PASSED" : "FAILED");
+		if(!passed)
+			System.exit(1);
+	}
+	
+	/**
+	 * Returns a sample from a Student's t distribution with three degrees of freedom.
+	 * 
+	 * @param size
+	 * @param random
+	 * @return
+	 */
+	private static double[] getSample(int size, Random random) {
+		double[] sample = new double[size];
+		for(int i = 0; i < size; i++) {
+			double chi = 0.0;
+			for(int d = 0; d < 3; d++) {
+				double g = random.nextGaussian();
+				chi += g * g;
+			}
+			sample[i] = random.nextGaussian() / Math.sqrt(chi / 3);
+		}
+		return sample;
+	}
+	
+	/**
+	 * Returns the difference between the fraction of the sorted sample that is less
+	 * than the estimate and the quantile that was estimated.
+	 * 
+	 * @param sorted
+	 * @param estimate
+	 * @param quantile
+	 * @return
+	 */
+	private static double getRankError(double[] sorted, double estimate, double quantile) {
+		int index = Arrays.binarySearch(sorted, estimate);
+		if(index < 0)
+			index = -index - 1;
+		return Math.abs((double) index / sorted.length - quantile);
+	}
+}
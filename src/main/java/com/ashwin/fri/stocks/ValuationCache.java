@@ -0,0 +1,250 @@
+package com.ashwin.fri.stocks;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.ashwin.fri.stocks.forecast.Forecast;
+import com.ashwin.fri.stocks.forecast.IncrementalTrainer;
+import com.ashwin.fri.stocks.hibernate.Submission;
+
+/**
+ * The valuation cache holds the results of recent discounted cash flow analyses, so
+ * that repeated valuations of the same registrant with the same figures are served
+ * without looking up its latest submission or running the networks. A valuation is
+ * identified by the registrant, the model version of the forecast and the figures it
+ * was calculated from, and remembers the submission it was calculated from.
+ * 
+ * A cached valuation is ignored once it has lived longer than the time to live, or
+ * once the forecast has been trained, updated or quantized again, because either
+ * changes the model version. The valuations of a registrant are dropped when a newer
+ * submission of the registrant is invalidated. The cache can listen to an incremental
+ * trainer, which reports every new submission. The cache holds a bounded number of
+ * valuations, and evicts the least recently used valuation once it is full.
+ * 
+ * @author ashwin
+ */
+public class ValuationCache implements IncrementalTrainer.Listener {
+	
+	/** Default number of valuations that the cache holds. */
+	public static final int DEFAULT_CAPACITY = 10000;
+	
+	/** Default time that a valuation is served from the cache, in milliseconds. */
+	public static final long DEFAULT_TTL = 15 * 60 * 1000;
+	
+	private final LinkedHashMap<Key, Entry> _entries;
+	private final int _capacity;
+	private final long _ttl;
+	
+	private final AtomicLong _hits, _misses, _evictions;
+	
+	public ValuationCache() {
+		this(DEFAULT_CAPACITY, DEFAULT_TTL);
+	}
+	
+	/**
+	 * Creates an empty cache that holds at most the specified number of valuations,
+	 * each for at most the specified time.
+	 * 
+	 * @param capacity
+	 * @param ttl time to live, in milliseconds
+	 */
+	public ValuationCache(final int capacity, long ttl) {
+		if(capacity < 0)
+			throw new IllegalArgumentException("Cache capacity must not be negative");
+		
+		_capacity = capacity;
+		_ttl = ttl;
+		_hits = new AtomicLong();
+		_misses = new AtomicLong();
+		_evictions = new AtomicLong();
+		
+		// The map is in access order, so the eldest entry is the least recently used.
+		_entries = new LinkedHashMap<Key, Entry>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+			
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<Key, Entry> eldest) {
+				if(size() <= capacity)
+					return false;
+				_evictions.incrementAndGet();
+				return true;
+			}
+		};
+	}
+	
+	/**
+	 * Returns the cached valuation of the registrant by the specified version of the
+	 * forecast, or null if there is none.
+	 * 
+	 * @param cik
+	 * @param version model version of the forecast, see {@link Forecast#getVersion}
+	 * @param figures figures and parameters that the valuation was calculated from
+	 * @return
+	 */
+	public Double get(int cik, long version, double[] figures) {
+		Key key = new Key(cik, version, figures);
+		synchronized(_entries) {
+			Entry entry = _entries.get(key);
+			if(entry != null && entry._expires < System.currentTimeMillis()) {
+				_entries.remove(key);
+				entry = null;
+			}
+			
+			if(entry == null) {
+				_misses.incrementAndGet();
+				return null;
+			}
+			_hits.incrementAndGet();
+			return entry._value;
+		}
+	}
+	
+	/**
+	 * Caches the valuation of the registrant by the specified version of the forecast.
+	 * The version must be read before the networks are run, so that a valuation is
+	 * never cached under a version that the forecast reached while it was calculated.
+	 * 
+	 * @param cik
+	 * @param adsh submission that the valuation was calculated from
+	 * @param version model version of the forecast that the valuation was calculated by
+	 * @param figures figures and parameters that the valuation was calculated from
+	 * @param value
+	 */
+	public void put(int cik, String adsh, long version, double[] figures, double value) {
+		Key key = new Key(cik, version, figures.clone());
+		synchronized(_entries) {
+			_entries.put(key, new Entry(adsh, value, System.currentTimeMillis() + _ttl));
+		}
+	}
+	
+	/**
+	 * Drops the valuations of the registrant of the submission that were calculated
+	 * from any other submission.
+	 * 
+	 * @param submission
+	 */
+	public void invalidate(Submission submission) {
+		int cik = submission.getRegistrant().getCik();
+		synchronized(_entries) {
+			Iterator<Map.Entry<Key, Entry>> iterator = _entries.entrySet().iterator();
+			while(iterator.hasNext()) {
+				Map.Entry<Key, Entry> next = iterator.next();
+				if(next.getKey()._cik == cik && !next.getValue()._adsh.equals(submission.getAdsh()))
+					iterator.remove();
+			}
+		}
+	}
+	
+	/**
+	 * Drops the valuations of the registrants of the new submissions of an industry.
+	 */
+	@Override
+	public void updated(int sic, List<Submission> submissions) {
+		for(Submission submission : submissions)
+			invalidate(submission);
+	}
+	
+	/**
+	 * Drops every cached valuation. The metrics of the cache are not reset.
+	 */
+	public void clear() {
+		synchronized(_entries) {
+			_entries.clear();
+		}
+	}
+	
+	public int getCapacity() {
+		return _capacity;
+	}
+	
+	/**
+	 * @return time to live, in milliseconds
+	 */
+	public long getTimeToLive() {
+		return _ttl;
+	}
+	
+	/**
+	 * @return number of valuations in the cache
+	 */
+	public int getSize() {
+		synchronized(_entries) {
+			return _entries.size();
+		}
+	}
+	
+	public long getHits() {
+		return _hits.get();
+	}
+	
+	public long getMisses() {
+		return _misses.get();
+	}
+	
+	public long getEvictions() {
+		return _evictions.get();
+	}
+	
+	/**
+	 * @return fraction of lookups that were served from the cache
+	 */
+	public double getHitRate() {
+		long hits = _hits.get(), lookups = hits + _misses.get();
+		return (lookups == 0) ? 0.0 : (double) hits / lookups;
+	}
+	
+	@Override
+	public String toString() {
+		return String.format("%d/%d valuations, %d hits, %d misses (%.1f%%), %d evictions", getSize(),
+				getCapacity(), getHits(), getMisses(), 100 * getHitRate(), getEvictions());
+	}
+	
+	/**
+	 * Identifies a valuation by its registrant, model version and figures.
+	 */
+	private static class Key {
+		
+		private final int _cik;
+		private final long _version;
+		private final double[] _figures;
+		private final int _hash;
+		
+		private Key(int cik, long version, double[] figures) {
+			_cik = cik;
+			_version = version;
+			_figures = figures;
+			_hash = 31 * (31 * cik + (int) (version ^ (version >>> 32))) + Arrays.hashCode(figures);
+		}
+		
+		@Override
+		public int hashCode() {
+			return _hash;
+		}
+		
+		@Override
+		public boolean equals(Object obj) {
+			if(!(obj instanceof Key))
+				return false;
+			
+			Key oth = (Key) obj;
+			return _cik == oth._cik && _version == oth._version && Arrays.equals(_figures, oth._figures);
+		}
+	}
+	
+	private static class Entry {
+		
+		private final String _adsh;
+		private final double _value;
+		private final long _expires;
+		
+		private Entry(String adsh, double value, long expires) {
+			_adsh = adsh;
+			_value = value;
+			_expires = expires;
+		}
+	}
+}
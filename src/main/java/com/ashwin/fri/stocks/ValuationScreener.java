@@ -0,0 +1,308 @@
+package com.ashwin.fri.stocks;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+import com.ashwin.fri.stocks.forecast.Forecast;
+import com.ashwin.fri.stocks.forecast.IncrementalTrainer;
+import com.ashwin.fri.stocks.hibernate.Submission;
+
+/**
+ * The valuation screener keeps the registrants with the highest valuations of each
+ * industry and of the whole market ranked in memory, so that the top registrants can
+ * be looked up without valuing and sorting every registrant. The screener is loaded
+ * once with the latest submission of every registrant, and is then kept current by
+ * re-valuing only the registrants that file new submissions. It can listen to an
+ * incremental trainer, which reports the new submissions of every industry after it
+ * has updated the forecast of the industry.
+ * 
+ * There are no market prices in the database, so registrants are ranked by the free
+ * cash flow that the forecast of their industry projects from their latest submission.
+ * Registrants that do not file again keep the valuation of the forecast at the time
+ * they were valued, until their industry is loaded again.
+ * 
+ * Each ranking holds at most the capacity of the screener, which bounds the number of
+ * registrants that can be looked up at once. The latest valuation of every registrant
+ * is kept as well, so that a ranking can be refilled when one of its registrants is
+ * re-valued below the others.
+ * 
+ * @author ashwin
+ */
+public class ValuationScreener implements IncrementalTrainer.Listener {
+	
+	/** Orders valuations from the highest to the lowest, and then by registrant. */
+	private static final Comparator<Valuation> RANK = new Comparator<Valuation>() {
+		@Override
+		public int compare(Valuation a, Valuation b) {
+			int cmp = Double.compare(b.getFreeCashFlow(), a.getFreeCashFlow());
+			return (cmp != 0) ? cmp : Integer.compare(a.getCik(), b.getCik());
+		}
+	};
+	
+	private final Map<Integer, Forecast> _forecasts;
+	private final int _capacity;
+	
+	private Map<Integer, Valuation> _valuations;
+	private Map<Integer, TreeSet<Valuation>> _industries;
+	private TreeSet<Valuation> _market;
+	
+	/**
+	 * Creates an empty screener with the discounted cash flow forecast of each industry.
+	 * 
+	 * @param forecasts trained forecasts by industry
+	 * @param capacity maximum number of registrants in each ranking
+	 */
+	public ValuationScreener(Map<Integer, Forecast> forecasts, int capacity) {
+		_forecasts = forecasts;
+		_capacity = capacity;
+		_valuations = new HashMap<Integer, Valuation>();
+		_industries = new TreeMap<Integer, TreeSet<Valuation>>();
+		_market = new TreeSet<Valuation>(RANK);
+	}
+	
+	/**
+	 * Values the latest submission of every registrant of the specified industries.
+	 * 
+	 * @param sics
+	 * @return number of registrants that were valued
+	 */
+	public int load(List<Integer> sics) {
+		List<Submission> submissions = BatchValuation.getLatestSubmissions(sics);
+		update(submissions);
+		return submissions.size();
+	}
+	
+	/**
+	 * Re-values the registrants of the new submissions of an industry, after its
+	 * forecast has been updated.
+	 */
+	@Override
+	public void updated(int sic, List<Submission> submissions) {
+		update(submissions);
+	}
+	
+	/**
+	 * Re-values the registrants of the submissions, and updates their ranks. Submissions
+	 * of industries without a forecast are ignored, and so are submissions that were
+	 * accepted before the submission a registrant was last valued from.
+	 * 
+	 * @param submissions
+	 */
+	public void update(List<Submission> submissions) {
+		// Step 1: Group the submissions by industry, because each industry is valued by
+		// its own forecast.
+		Map<Integer, List<Submission>> industries = new TreeMap<Integer, List<Submission>>();
+		for(Submission submission : submissions) {
+			Integer sic = submission.getRegistrant().getSic();
+			if(!_forecasts.containsKey(sic))
+				continue;
+			
+			if(!industries.containsKey(sic))
+				industries.put(sic, new ArrayList<Submission>());
+			industries.get(sic).add(submission);
+		}
+		
+		// Step 2: Value the submissions of every industry in bulk, outside of the lock,
+		// so that the rankings can be queried in the meantime.
+		List<Valuation> valuations = new ArrayList<Valuation>();
+		for(Map.Entry<Integer, List<Submission>> entry : industries.entrySet()) {
+			Forecast forecast = _forecasts.get(entry.getKey());
+			List<Submission> batch = entry.getValue();
+			double[][] growths = forecast.predict(batch);
+			Map<String, double[]> figures = BatchValuation.getFigures(batch, forecast);
+			for(int k = 0; k < batch.size(); k++) {
+				double[] f = figures.get(batch.get(k).getAdsh());
+				valuations.add(new Valuation(batch.get(k),
+						DCFAnalysis.getFreeCashFlow(growths[k], f[0], f[1], f[2], f[3], f[4], f[5])));
+			}
+		}
+		
+		// Step 3: Replace the earlier valuations of the registrants in the rankings.
+		synchronized(this) {
+			for(Valuation valuation : valuations)
+				put(valuation);
+		}
+	}
+	
+	/**
+	 * Returns the registrants with the highest valuations in the market.
+	 * 
+	 * @param k number of registrants, at most the capacity
+	 * @return
+	 */
+	public synchronized List<Valuation> getTop(int k) {
+		return getTop(_market, k);
+	}
+	
+	/**
+	 * Returns the registrants with the highest valuations in the industry.
+	 * 
+	 * @param sic
+	 * @param k number of registrants, at most the capacity
+	 * @return
+	 */
+	public synchronized List<Valuation> getTop(int sic, int k) {
+		TreeSet<Valuation> ranking = _industries.get(sic);
+		return (ranking == null) ? new ArrayList<Valuation>() : getTop(ranking, k);
+	}
+	
+	/**
+	 * Returns the latest valuation of the registrant, or null if it hasn't been valued.
+	 * 
+	 * @param cik
+	 * @return
+	 */
+	public synchronized Valuation getValuation(int cik) {
+		return _valuations.get(cik);
+	}
+	
+	public int getCapacity() {
+		return _capacity;
+	}
+	
+	/**
+	 * Replaces the valuation of the registrant, unless it was valued from a later
+	 * submission, and updates the rankings it belongs to.
+	 * 
+	 * @param valuation
+	 */
+	private void put(Valuation valuation) {
+		Valuation previous = _valuations.get(valuation.getCik());
+		if(previous != null && previous.getAcceptedDate() > valuation.getAcceptedDate())
+			return;
+		
+		_valuations.put(valuation.getCik(), valuation);
+		if(!_industries.containsKey(valuation.getSic()))
+			_industries.put(valuation.getSic(), new TreeSet<Valuation>(RANK));
+		
+		// A registrant that changed industries leaves the ranking of its previous industry.
+		if(previous != null && previous.getSic() != valuation.getSic()) {
+			TreeSet<Valuation> ranking = _industries.get(previous.getSic());
+			if(ranking.remove(previous))
+				refill(ranking, previous.getSic());
+		}
+		update(_industries.get(valuation.getSic()), previous, valuation, valuation.getSic());
+		update(_market, previous, valuation, null);
+	}
+	
+	/**
+	 * Removes the previous valuation of the registrant from the ranking, and inserts its
+	 * new valuation if it ranks within the capacity. If the registrant was ranked, then
+	 * its new valuation competes with the valuations that weren't ranked for the free
+	 * place: it is inserted directly if it still ranks above the rest of the ranking,
+	 * because every valuation that wasn't ranked is below the rest, and otherwise the
+	 * ranking is refilled with the highest valuation that isn't ranked, which may be the
+	 * new valuation itself.
+	 * 
+	 * @param ranking
+	 * @param previous previous valuation of the registrant, or null
+	 * @param valuation
+	 * @param sic industry of the ranking, or null for the market
+	 */
+	private void update(TreeSet<Valuation> ranking, Valuation previous, Valuation valuation, Integer sic) {
+		if(previous != null && ranking.remove(previous)) {
+			if(!ranking.isEmpty() && RANK.compare(valuation, ranking.last()) < 0)
+				ranking.add(valuation);
+			else
+				refill(ranking, sic);
+		} else if(ranking.size() < _capacity || RANK.compare(valuation, ranking.last()) < 0) {
+			ranking.add(valuation);
+			if(ranking.size() > _capacity)
+				ranking.pollLast();
+		}
+	}
+	
+	/**
+	 * Adds the highest valuation that isn't ranked yet to a ranking that is one short of
+	 * its capacity. This scans every valuation of the ranking's registrants, but only
+	 * happens when a ranked registrant is re-valued below the rest of the ranking, or
+	 * leaves the industry of the ranking.
+	 * 
+	 * @param ranking
+	 * @param sic industry of the ranking, or null for the market
+	 */
+	private void refill(TreeSet<Valuation> ranking, Integer sic) {
+		Valuation best = null;
+		for(Valuation valuation : _valuations.values()) {
+			if(sic != null && !sic.equals(valuation.getSic()))
+				continue;
+			if(ranking.contains(valuation))
+				continue;
+			if(best == null || RANK.compare(valuation, best) < 0)
+				best = valuation;
+		}
+		
+		if(best != null)
+			ranking.add(best);
+	}
+	
+	private static List<Valuation> getTop(TreeSet<Valuation> ranking, int k) {
+		List<Valuation> top = new ArrayList<Valuation>(Math.min(k, ranking.size()));
+		Iterator<Valuation> iterator = ranking.iterator();
+		while(top.size() < k && iterator.hasNext())
+			top.add(iterator.next());
+		return top;
+	}
+	
+	/**
+	 * The valuation of a registrant from one of its submissions. Valuations are
+	 * immutable, so they can be handed out of the screener.
+	 */
+	public static class Valuation {
+		
+		private final int _sic, _cik;
+		private final String _name, _adsh;
+		private final long _acceptedDate;
+		private final double _fcf;
+		
+		private Valuation(Submission submission, double fcf) {
+			_sic = submission.getRegistrant().getSic();
+			_cik = submission.getRegistrant().getCik();
+			_name = submission.getRegistrant().getName();
+			_adsh = submission.getAdsh();
+			_acceptedDate = submission.getAcceptedDate().getTime();
+			_fcf = fcf;
+		}
+		
+		public int getSic() {
+			return _sic;
+		}
+		
+		public int getCik() {
+			return _cik;
+		}
+		
+		public String getName() {
+			return _name;
+		}
+		
+		/**
+		 * @return adsh of the submission the registrant was valued from
+		 */
+		public String getAdsh() {
+			return _adsh;
+		}
+		
+		public long getAcceptedDate() {
+			return _acceptedDate;
+		}
+		
+		/**
+		 * @return projected free cash flow
+		 */
+		public double getFreeCashFlow() {
+			return _fcf;
+		}
+		
+		@Override
+		public String toString() {
+			return _sic + " " + _cik + " " + _name + ": " + _fcf;
+		}
+	}
+}
@@ -0,0 +1,346 @@
+package com.ashwin.fri.stocks.forecast;
+
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import com.ashwin.fri.stocks.hibernate.HibernateConfig;
+import com.ashwin.fri.stocks.hibernate.Submission;
+import com.ashwin.fri.stocks.hibernate.Tag;
+import com.ashwin.fri.stocks.neural.NeuralNetwork;
+
+/**
+ * The backtest measures the accuracy of a forecast over time with a walk-forward
+ * procedure. For every quarter, a fresh forecast is trained on the submissions
+ * whose next filing was made in the preceding quarters of the window, and is
+ * then used to predict the next filing of every registrant that filed in the
+ * quarter. Training only ever sees filings that were made before the quarter
+ * that is being predicted.
+ * 
+ * The raw growth vectors of all submissions are loaded from the database once
+ * and are shared by all windows, which only differ in the rows they select.
+ * Windows are independent of each other and are evaluated in parallel.
+ * 
+ * Usage: Backtest sic [window]
+ * 
+ * @author ashwin
+ */
+public class Backtest {
+	
+	private int _sic;
+	private double _confidence, _deviations;
+	private List<Tag> _inputs, _outputs;
+	private List<NeuralNetwork> _networks;
+	
+	private double[][] _ri, _ro;
+	private List<Submission> _rs;
+	private int[] _quarters;
+	
+	/**
+	 * Loads the raw growth vectors of every consecutive pair of submissions in the
+	 * industry from the start date to the end date.
+	 * 
+	 * @param sic
+	 * @param inputs number of input tags
+	 * @param start
+	 * @param end
+	 * @param confidence
+	 * @param outputs names of the output tags
+	 * @throws InterruptedException
+	 */
+	public Backtest(int sic, int inputs, Date start, Date end, double confidence, String... outputs)
+			throws InterruptedException {
+		Forecast probe = new Forecast(sic, inputs, outputs);
+		_sic = sic;
+		_confidence = confidence;
+		_deviations = probe.getMaxDeviations();
+		_inputs = probe.getInputTags();
+		_outputs = probe.getOutputTags();
+		_networks = probe.getNeuralNetwork();
+		
+		// Registrants are independent of each other, so their pairs are loaded in parallel.
+		List<Forecast.Pair> pairs = probe.getPairs(probe.getSubmissions(start, end), HibernateConfig.POOL_SIZE);
+		List<Submission> rs = new ArrayList<Submission>();
+		_ri = new double[pairs.size()][];
+		_ro = new double[pairs.size()][];
+		_quarters = new int[pairs.size()];
+		for(int i = 0; i < pairs.size(); i++) {
+			_ri[i] = pairs.get(i).getInputs();
+			_ro[i] = pairs.get(i).getOutputs();
+			_quarters[i] = getQuarter(pairs.get(i).getNext().getFilingDate());
+			rs.add(pairs.get(i).getSubmission());
+		}
+		_rs = Collections.unmodifiableList(rs);
+	}
+	
+	public int getSic() {
+		return _sic;
+	}
+	
+	public List<Tag> getOutputTags() {
+		return _outputs;
+	}
+	
+	/**
+	 * Runs the backtest. Every quarter after the first window is predicted by a
+	 * forecast that is trained on the preceding quarters of the window.
+	 * 
+	 * @param window number of quarters to train each forecast on
+	 * @param epochs number of passes over the training data of each window
+	 * @param learningRate
+	 * @return results of each quarter, in chronological order
+	 * @throws Exception
+	 */
+	public List<Period> run(final int window, final int epochs, final double learningRate) throws Exception {
+		int first = Integer.MAX_VALUE, last = Integer.MIN_VALUE;
+		for(int quarter : _quarters) {
+			first = Math.min(first, quarter);
+			last  = Math.max(last, quarter);
+		}
+		
+		ExecutorService executor = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
+		List<Period> periods = new ArrayList<Period>();
+		try {
+			List<Future<Period>> futures = new ArrayList<Future<Period>>();
+			for(int quarter = first + window; quarter <= last; quarter++) {
+				final int q = quarter;
+				futures.add(executor.submit(new Callable<Period>() {
+					@Override
+					public Period call() throws Exception {
+						return run(q, window, epochs, learningRate);
+					}
+				}));
+			}
+			
+			for(Future<Period> future : futures)
+				periods.add(future.get());
+		} finally {
+			executor.shutdown();
+		}
+		
+		return periods;
+	}
+	
+	/**
+	 * Trains a forecast on the window before the specified quarter, and predicts
+	 * the filings that were made during the quarter.
+	 * 
+	 * @param quarter
+	 * @param window
+	 * @param epochs
+	 * @param learningRate
+	 * @return
+	 */
+	private Period run(int quarter, int window, int epochs, double learningRate) {
+		// Step 1: Select the rows whose next filing was made during the window and
+		// that have sufficiently few null inputs. The selected rows are copied, because
+		// the training samples are generated from them in place.
+		int size = 0;
+		double[][] ri = new double[_ri.length][];
+		double[][] ro = new double[_ro.length][];
+		List<Submission> rs = new ArrayList<Submission>();
+		for(int i = 0; i < _ri.length; i++) {
+			if(_quarters[i] < quarter - window || _quarters[i] >= quarter || !isConfident(_ri[i]))
+				continue;
+			
+			ri[size] = Forecast.getFeatureRow(_ri[i], _inputs.size());
+			ro[size] = _ro[i].clone();
+			rs.add(_rs.get(i));
+			size++;
+		}
+		
+		Period period = new Period(quarter, size, _outputs.size());
+		if(size == 0)
+			return period;
+		
+		// Step 2: Train a fresh set of networks on the window, exactly as the forecast
+		// would be trained. Every window starts from copies of the untrained networks of
+		// the forecast, so the networks have the same layers and optimizer.
+		List<Statistic> sin  = Forecast.getColumnStatistics(ri, size, 1, _inputs.size(), 0);
+		List<Statistic> sout = Forecast.getColumnStatistics(ro, size, 0, _outputs.size(), 0);
+		TrainingSet set = Forecast.getTrainingSet(ri, ro, rs, size, sin, sout, _deviations);
+		
+		List<NeuralNetwork> networks = new ArrayList<NeuralNetwork>();
+		for(int j = 0; j < _outputs.size(); j++)
+			networks.add(new NeuralNetwork(_networks.get(j)));
+		
+		Random random = new Random();
+		for(int epoch = 0; epoch < epochs; epoch++) {
+			set.shuffle(0, set.size(), random);
+			for(int i = 0; i < set.size(); i++) {
+				double[] targets = set.getTargets()[i];
+				for(int j = 0; j < targets.length; j++)
+					if(!Double.isNaN(targets[j]))
+						networks.get(j).backpropagate(set.getInputs()[i], new double[] { targets[j] }, learningRate);
+			}
+		}
+		
+		// Step 3: Predict the next filing of every registrant that filed during the
+		// quarter, exactly as the forecast would predict it, and compare the predicted
+		// growth with the actual growth.
+		for(int i = 0; i < _ri.length; i++) {
+			if(_quarters[i] != quarter || !isConfident(_ri[i]))
+				continue;
+			
+			double[] in = Forecast.getFeatureRow(_ri[i], _inputs.size());
+			Forecast.setInputVector(in, _rs.get(i), sin);
+			
+			for(int j = 0; j < _outputs.size(); j++) {
+				double actual = _ro[i][j];
+				if(Double.isNaN(actual))
+					continue;
+				
+				double predicted = sout.get(j).raw(_deviations * (networks.get(j).execute(in)[0] - 0.5));
+				period.add(j, predicted - actual);
+			}
+		}
+		
+		return period;
+	}
+	
+	private boolean isConfident(double[] gi) {
+		return Forecast.isConfident(gi, 0, gi.length, _confidence);
+	}
+	
+	/**
+	 * Prints the errors of each quarter and of the entire backtest as a table.
+	 * 
+	 * @param periods
+	 * @param out
+	 */
+	public void print(List<Period> periods, PrintStream out) {
+		Period total = new Period(-1, 0, _outputs.size());
+		out.println("SIC " + _sic);
+		out.println(String.format("%-8s %-40s %8s %8s %12s %12s",
+				"quarter", "tag", "training", "tested", "mae", "rmse"));
+		for(Period period : periods) {
+			for(int j = 0; j < _outputs.size(); j++) {
+				out.println(String.format("%-8s %-40s %8d %8d %12s %12s", period.getName(),
+						_outputs.get(j).getName(), period.getTrainingSamples(), period.getCount(j),
+						format(period.getMeanAbsoluteError(j)), format(period.getRootMeanSquaredError(j))));
+			}
+			total.merge(period);
+		}
+		
+		for(int j = 0; j < _outputs.size(); j++)
+			out.println(String.format("%-8s %-40s %8s %8d %12s %12s", "total", _outputs.get(j).getName(),
+					"", total.getCount(j), format(total.getMeanAbsoluteError(j)),
+					format(total.getRootMeanSquaredError(j))));
+	}
+	
+	/**
+	 * Formats an error, or a dash if there were no predictions to measure it on.
+	 * 
+	 * @param error
+	 * @return
+	 */
+	private static String format(double error) {
+		return Double.isNaN(error) ? "-" : String.format("%.6f", error);
+	}
+	
+	/**
+	 * Returns the quarter of the specified date, as the number of quarters since
+	 * the beginning of year zero.
+	 * 
+	 * @param date
+	 * @return quarter
+	 */
+	private static int getQuarter(Date date) {
+		Calendar calendar = Calendar.getInstance();
+		calendar.setTime(date);
+		return calendar.get(Calendar.YEAR) * 4 + calendar.get(Calendar.MONTH) / 3;
+	}
+	
+	public static void main(String[] args) throws Exception {
+		int sic    = (args.length > 0) ? Integer.parseInt(args[0]) : 1311;
+		int window = (args.length > 1) ? Integer.parseInt(args[1]) : 8;
+		
+		Backtest backtest = new Backtest(sic, 15, new Date(0), new Date(System.currentTimeMillis()), 0.70,
+				"Revenues", "CostsAndExpenses", "TaxesOther", "InvestmentIncomeNonOperating",
+				"AssetsCurrent", "LiabilitiesCurrent");
+		backtest.print(backtest.run(window, 10, 1.2), System.out);
+	}
+	
+	/**
+	 * A period contains the prediction errors of each output tag for a single
+	 * quarter of the backtest.
+	 */
+	public static class Period {
+		
+		private int _quarter, _training;
+		private int[] _count;
+		private double[] _absolute, _squared;
+		
+		private Period(int quarter, int training, int outputs) {
+			_quarter = quarter;
+			_training = training;
+			_count = new int[outputs];
+			_absolute = new double[outputs];
+			_squared = new double[outputs];
+		}
+		
+		private void add(int output, double error) {
+			_count[output]++;
+			_absolute[output] += Math.abs(error);
+			_squared[output] += error * error;
+		}
+		
+		private void merge(Period period) {
+			for(int j = 0; j < _count.length; j++) {
+				_count[j] += period._count[j];
+				_absolute[j] += period._absolute[j];
+				_squared[j] += period._squared[j];
+			}
+		}
+		
+		/**
+		 * @return the name of the quarter, for example 2014Q3
+		 */
+		public String getName() {
+			return (_quarter / 4) + "Q" + (_quarter % 4 + 1);
+		}
+		
+		/**
+		 * @return number of samples the forecast of this quarter was trained on
+		 */
+		public int getTrainingSamples() {
+			return _training;
+		}
+		
+		/**
+		 * @param output index of the output tag
+		 * @return number of predictions of the output tag
+		 */
+		public int getCount(int output) {
+			return _count[output];
+		}
+		
+		/**
+		 * @param output index of the output tag
+		 * @return mean absolute error, or NaN if the output tag has no predictions
+		 */
+		public double getMeanAbsoluteError(int output) {
+			if(_count[output] == 0)
+				return Double.NaN;
+			return _absolute[output] / _count[output];
+		}
+		
+		/**
+		 * @param output index of the output tag
+		 * @return root mean squared error, or NaN if the output tag has no predictions
+		 */
+		public double getRootMeanSquaredError(int output) {
+			if(_count[output] == 0)
+				return Double.NaN;
+			return Math.sqrt(_squared[output] / _count[output]);
+		}
+	}
+}
@@ -0,0 +1,237 @@
+package com.ashwin.fri.stocks.forecast;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+
+import com.ashwin.fri.stocks.hibernate.Tag;
+import com.ashwin.fri.stocks.neural.NeuralNetwork;
+
+/**
+ * A checkpoint is a snapshot of a forecast in the middle of training. It
+ * contains the weights of the networks, the column statistics and a training
+ * cursor, which is the registrant, filing date and accession number of the last
+ * submission that was run through the networks. The accession number tells apart
+ * filings of a registrant on the same date, such as a 10-Q and its amendment.
+ * When training over multiple epochs, checkpoints are instead taken between
+ * epochs and contain the number of completed epochs and the best validation
+ * loss so far. A checkpoint also remembers the arguments of the training run,
+ * the number of epochs, the input and output tags and the shape of the networks,
+ * so that it is never used to resume a different run.
+ * 
+ * @author ashwin
+ */
+public class Checkpoint implements Serializable {
+	
+	private static final long serialVersionUID = -2154381870393217365L;
+	
+	private int _sic;
+	private Date _start, _end;
+	private double _confidence;
+	private int _epochs;
+	private List<String> _inputs, _outputs;
+	
+	private List<NeuralNetwork> _networks;
+	private List<Statistic> _sin, _sout;
+	
+	private Integer _cik;
+	private Date _filingDate;
+	private String _adsh;
+	
+	private int _epoch;
+	private double _loss;
+	
+	/**
+	 * Creates a new checkpoint. The networks are copied, so that training may
+	 * continue while the checkpoint is being written. Statistics are immutable
+	 * and are therefore shared with the forecast.
+	 * 
+	 * @param forecast forecast that is being trained
+	 * @param start
+	 * @param end
+	 * @param confidence
+	 * @param networks
+	 * @param cik
+	 * @param filingDate
+	 * @param adsh
+	 */
+	public Checkpoint(Forecast forecast, Date start, Date end, double confidence, List<NeuralNetwork> networks,
+			Integer cik, Date filingDate, String adsh) {
+		
+		_sic = forecast.getSic();
+		_start = start;
+		_end = end;
+		_confidence = confidence;
+		_epochs = forecast.getEpochs();
+		_inputs = getNames(forecast.getInputTags());
+		_outputs = getNames(forecast.getOutputTags());
+		_networks = new ArrayList<NeuralNetwork>();
+		for(NeuralNetwork network : networks)
+			_networks.add(new NeuralNetwork(network));
+		_sin = forecast.getInputStatistics();
+		_sout = forecast.getOutputStatistics();
+		_cik = cik;
+		_filingDate = filingDate;
+		_adsh = adsh;
+	}
+	
+	/**
+	 * Creates a new checkpoint between two epochs of training.
+	 * 
+	 * @param forecast forecast that is being trained
+	 * @param start
+	 * @param end
+	 * @param confidence
+	 * @param networks
+	 * @param epoch number of completed epochs
+	 * @param loss best validation loss so far
+	 */
+	public Checkpoint(Forecast forecast, Date start, Date end, double confidence, List<NeuralNetwork> networks,
+			int epoch, double loss) {
+		
+		this(forecast, start, end, confidence, networks, null, null, null);
+		_epoch = epoch;
+		_loss = loss;
+	}
+	
+	public List<NeuralNetwork> getNeuralNetwork() {
+		return _networks;
+	}
+	
+	public List<Statistic> getInputStatistics() {
+		return _sin;
+	}
+	
+	public List<Statistic> getOutputStatistics() {
+		return _sout;
+	}
+	
+	public Integer getCik() {
+		return _cik;
+	}
+	
+	public Date getFilingDate() {
+		return _filingDate;
+	}
+	
+	/**
+	 * Returns the accession number of the training cursor, or null if the checkpoint
+	 * was written before cursors included it.
+	 * 
+	 * @return adsh
+	 */
+	public String getAdsh() {
+		return _adsh;
+	}
+	
+	/**
+	 * @return true if the checkpoint was taken between epochs, false otherwise
+	 */
+	public boolean isEpochCheckpoint() {
+		return _cik == null;
+	}
+	
+	public int getEpoch() {
+		return _epoch;
+	}
+	
+	public double getLoss() {
+		return _loss;
+	}
+	
+	/**
+	 * Returns whether or not this checkpoint was taken during a training run of the
+	 * forecast with the specified arguments. The forecast must train for the same
+	 * number of epochs, so that a checkpoint between epochs never resumes a single
+	 * pass or the other way around, and must have the same tags and networks of the
+	 * same shape. Checkpoints that were written before they recorded the tags are
+	 * never resumable.
+	 * 
+	 * @param forecast
+	 * @param start
+	 * @param end
+	 * @param confidence
+	 * @return true if the run can be resumed from this checkpoint, false otherwise
+	 */
+	public boolean isResumableBy(Forecast forecast, Date start, Date end, double confidence) {
+		if(_sic != forecast.getSic() || !_start.equals(start) || !_end.equals(end) || _confidence != confidence)
+			return false;
+		if(_epochs != forecast.getEpochs() || _inputs == null || _outputs == null)
+			return false;
+		if(!_inputs.equals(getNames(forecast.getInputTags())) || !_outputs.equals(getNames(forecast.getOutputTags())))
+			return false;
+		
+		List<NeuralNetwork> networks = forecast.getNeuralNetwork();
+		if(networks == null || networks.size() != _networks.size())
+			return false;
+		for(int i = 0; i < networks.size(); i++)
+			if(!Arrays.equals(networks.get(i).getLayerSizes(), _networks.get(i).getLayerSizes()))
+				return false;
+		return true;
+	}
+	
+	private static List<String> getNames(List<Tag> tags) {
+		List<String> names = new ArrayList<String>();
+		for(Tag tag : tags)
+			names.add(tag.getName());
+		return names;
+	}
+	
+	/**
+	 * Writes the checkpoint to the specified file. The checkpoint is first written
+	 * to a temporary file, which is then moved over the specified file. This
+	 * guarantees that the file always contains a complete checkpoint, even if
+	 * the process dies in the middle of a write.
+	 * 
+	 * @param file
+	 * @throws IOException
+	 */
+	public void write(File file) throws IOException {
+		File tmp = new File(file.getPath() + ".tmp");
+		ObjectOutputStream out = new ObjectOutputStream(
+				new BufferedOutputStream(new FileOutputStream(tmp)));
+		try {
+			out.writeObject(this);
+		} finally {
+			out.close();
+		}
+		
+		Files.move(tmp.toPath(), file.toPath(),
+				StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+	
+	/**
+	 * Reads a checkpoint from the specified file. If the file does not exist,
+	 * then there is nothing to resume from and this method returns null.
+	 * 
+	 * @param file
+	 * @return checkpoint
+	 * @throws IOException
+	 */
+	public static Checkpoint read(File file) throws IOException {
+		if(!file.exists())
+			return null;
+		
+		ObjectInputStream in = new ObjectInputStream(
+				new BufferedInputStream(new FileInputStream(file)));
+		try {
+			return (Checkpoint) in.readObject();
+		} catch(ClassNotFoundException e) {
+			throw new IOException("Checkpoint " + file + " could not be read", e);
+		} finally {
+			in.close();
+		}
+	}
+}
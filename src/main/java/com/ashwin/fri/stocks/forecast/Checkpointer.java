@@ -0,0 +1,100 @@
+package com.ashwin.fri.stocks.forecast;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * The checkpointer writes checkpoints to a file on a background thread, so
+ * that training never waits on the disk. Only the latest checkpoint matters,
+ * so if training produces checkpoints faster than they can be written, then
+ * the checkpoints that have not been written yet are simply replaced.
+ * 
+ * @author ashwin
+ */
+public class Checkpointer implements Closeable {
+	
+	private final File _file;
+	private final ExecutorService _executor;
+	private final AtomicReference<Checkpoint> _pending;
+	private volatile IOException _failure;
+	
+	public Checkpointer(File file) {
+		_file = file;
+		_pending = new AtomicReference<Checkpoint>();
+		_executor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable runnable) {
+				Thread thread = new Thread(runnable, "checkpointer-" + _file.getName());
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+	}
+	
+	public File getFile() {
+		return _file;
+	}
+	
+	/**
+	 * Schedules the checkpoint to be written. This method returns immediately.
+	 * 
+	 * @param checkpoint
+	 */
+	public void write(Checkpoint checkpoint) {
+		// A write task is only scheduled if there isn't already one waiting to
+		// pick up the pending checkpoint. Otherwise, the waiting task writes the
+		// newer checkpoint instead of the one it was scheduled for.
+		if(_pending.getAndSet(checkpoint) != null)
+			return;
+		
+		_executor.execute(new Runnable() {
+			@Override
+			public void run() {
+				Checkpoint latest = _pending.getAndSet(null);
+				if(latest == null)
+					return;
+				
+				try {
+					latest.write(_file);
+				} catch(IOException e) {
+					_failure = e;
+				}
+			}
+		});
+	}
+	
+	/**
+	 * Deletes the checkpoint file. This should be called once training has
+	 * completed, because there is nothing left to resume.
+	 * 
+	 * @throws IOException
+	 */
+	public void delete() throws IOException {
+		close();
+		if(_file.exists() && !_file.delete())
+			throw new IOException("Checkpoint " + _file + " could not be deleted");
+	}
+	
+	/**
+	 * Waits for all scheduled checkpoints to be written. If any of the writes
+	 * failed, then the failure is rethrown here.
+	 */
+	@Override
+	public void close() throws IOException {
+		_executor.shutdown();
+		try {
+			_executor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+		} catch(InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		
+		if(_failure != null)
+			throw _failure;
+	}
+}
@@ -0,0 +1,427 @@
+package com.ashwin.fri.stocks.forecast;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.ashwin.fri.stocks.hibernate.Number;
+import com.ashwin.fri.stocks.hibernate.Submission;
+import com.ashwin.fri.stocks.hibernate.Tag;
+
+/**
+ * The feature cache holds the raw growth vectors of recently used submissions, so
+ * that training, prediction, valuation and backtests don't have to load the same
+ * numbers from the database over and over again. A growth vector is identified by
+ * the accession number of its submission and by a fingerprint of the ordered tags
+ * it was computed for. The cache holds a bounded number of vectors, and evicts the
+ * least recently used vector once it is full.
+ * 
+ * Growth vectors are cached before missing values are interpolated, because the
+ * interpolation depends on the column statistics of a forecast, which change
+ * every time the forecast is trained. A cached vector is never modified; callers
+ * receive a copy.
+ * 
+ * A cached vector is ignored if the submission it was computed from has since been
+ * accepted again, and the vectors of a filing are dropped when an amendment to it
+ * is invalidated, so amended figures are never served from the cache.
+ * 
+ * @author ashwin
+ */
+public class FeatureCache {
+	
+	/** Default number of growth vectors that the cache holds. */
+	public static final int DEFAULT_CAPACITY = 50000;
+	
+	private final LinkedHashMap<Key, Entry> _entries;
+	private int _capacity;
+	private volatile Source _source = Source.NUMBERS;
+	
+	private final AtomicLong _hits, _misses, _evictions;
+	
+	public FeatureCache() {
+		this(DEFAULT_CAPACITY);
+	}
+	
+	/**
+	 * Creates an empty cache that holds at most the specified number of vectors.
+	 * 
+	 * @param capacity
+	 */
+	public FeatureCache(int capacity) {
+		if(capacity < 0)
+			throw new IllegalArgumentException("Cache capacity must not be negative");
+		
+		_capacity = capacity;
+		_hits = new AtomicLong();
+		_misses = new AtomicLong();
+		_evictions = new AtomicLong();
+		
+		// The map is in access order, so the eldest entry is the least recently used.
+		_entries = new LinkedHashMap<Key, Entry>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+			
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<Key, Entry> eldest) {
+				if(size() <= _capacity)
+					return false;
+				_evictions.incrementAndGet();
+				return true;
+			}
+		};
+	}
+	
+	/**
+	 * Writes the growth vector of the submission for the specified tags into the
+	 * vector, starting at the specified offset. The growth vector is computed from
+	 * the numbers of the submission if it isn't cached yet.
+	 * 
+	 * @param submission
+	 * @param tags
+	 * @param vector
+	 * @param offset index of the growth of the first tag
+	 * @return the vector
+	 */
+	public double[] getGrowthVector(Submission submission, List<Tag> tags, double[] vector, int offset) {
+		double[] growth = get(submission, tags);
+		System.arraycopy(growth, 0, vector, offset, growth.length);
+		return vector;
+	}
+	
+	/**
+	 * Returns the cached growth vector of the submission for the specified tags, and
+	 * computes and caches it if it isn't cached yet. The returned vector must not be
+	 * modified.
+	 * 
+	 * @param submission
+	 * @param tags
+	 * @return
+	 */
+	double[] get(Submission submission, List<Tag> tags) {
+		Key key = new Key(submission.getAdsh(), getFingerprint(tags));
+		synchronized(_entries) {
+			Entry entry = _entries.get(key);
+			if(entry != null && entry.isCurrent(submission)) {
+				_hits.incrementAndGet();
+				return entry._growth;
+			}
+		}
+		
+		// The database is queried outside of the lock, so that threads that miss don't
+		// hold up each other. Two threads may compute the same vector, but they will
+		// compute the same values.
+		_misses.incrementAndGet();
+		double[] growth = (_source == Source.NUMBERS) ?
+				Forecast.getGrowthVector(Forecast.getNumbers(submission, tags), tags, new double[tags.size()], 0) :
+				compute(Collections.singletonList(submission), tags).get(submission.getAdsh());
+		
+		synchronized(_entries) {
+			_entries.put(key, new Entry(submission, growth));
+		}
+		return growth;
+	}
+	
+	/**
+	 * Returns the growth vectors of every submission for the specified tags. The growth
+	 * vectors that are not cached are computed in bulk and cached. The returned vectors
+	 * must not be modified.
+	 * 
+	 * @param submissions
+	 * @param tags
+	 * @return growth vector of each submission, in the same order
+	 */
+	double[][] getAll(List<Submission> submissions, List<Tag> tags) {
+		long fingerprint = getFingerprint(tags);
+		double[][] growths = new double[submissions.size()][];
+		List<Submission> missing = new ArrayList<Submission>();
+		synchronized(_entries) {
+			for(int k = 0; k < growths.length; k++) {
+				Entry entry = _entries.get(new Key(submissions.get(k).getAdsh(), fingerprint));
+				if(entry != null && entry.isCurrent(submissions.get(k)))
+					growths[k] = entry._growth;
+				else
+					missing.add(submissions.get(k));
+			}
+		}
+		
+		_hits.addAndGet(growths.length - missing.size());
+		_misses.addAndGet(missing.size());
+		if(missing.isEmpty())
+			return growths;
+		
+		Map<String, double[]> computed = compute(missing, tags);
+		synchronized(_entries) {
+			for(Submission submission : missing)
+				_entries.put(new Key(submission.getAdsh(), fingerprint),
+						new Entry(submission, computed.get(submission.getAdsh())));
+		}
+		
+		for(int k = 0; k < growths.length; k++)
+			if(growths[k] == null)
+				growths[k] = computed.get(submissions.get(k).getAdsh());
+		return growths;
+	}
+	
+	/**
+	 * Computes the growth vectors of the submissions from the source of the cache, with
+	 * as few queries as possible.
+	 * 
+	 * @param submissions
+	 * @param tags
+	 * @return growth vector of each submission by adsh
+	 */
+	private Map<String, double[]> compute(List<Submission> submissions, List<Tag> tags) {
+		switch(_source) {
+			case PUSHDOWN:
+				return Forecast.getGrowthVectors(submissions, tags);
+			case TABLE:
+				return Forecast.getStoredGrowthVectors(submissions, tags);
+			default:
+				Map<String, double[]> growths = new HashMap<String, double[]>();
+				for(Map.Entry<String, List<Number>> numbers : Forecast.getNumbers(submissions, tags).entrySet())
+					growths.put(numbers.getKey(), Forecast.getGrowthVector(numbers.getValue(), tags,
+							new double[tags.size()], 0));
+				return growths;
+		}
+	}
+	
+	/**
+	 * Loads the growth vectors of every submission of the industry that was filed from
+	 * the start date to the end date from the growth table in a single query, so that
+	 * training doesn't query the database for each submission. This only has an effect
+	 * if the growth vectors are read from the growth table. If the industry has more
+	 * submissions than the capacity of the cache, then only the latest loaded vectors
+	 * remain cached.
+	 * 
+	 * @param sic
+	 * @param start
+	 * @param end
+	 * @param tags
+	 * @return number of vectors that were loaded
+	 */
+	public int load(int sic, Date start, Date end, List<Tag> tags) {
+		if(_source != Source.TABLE)
+			return 0;
+		
+		long fingerprint = getFingerprint(tags);
+		Map<Submission, double[]> vectors = Forecast.getStoredGrowthVectors(sic, start, end, tags);
+		synchronized(_entries) {
+			for(Map.Entry<Submission, double[]> vector : vectors.entrySet())
+				_entries.put(new Key(vector.getKey().getAdsh(), fingerprint),
+						new Entry(vector.getKey(), vector.getValue()));
+		}
+		return vectors.size();
+	}
+	
+	/**
+	 * Changes where the growth vectors that miss the cache come from. Every source
+	 * produces the same growth vectors.
+	 * 
+	 * @param source
+	 */
+	public void setSource(Source source) {
+		_source = source;
+	}
+	
+	public Source getSource() {
+		return _source;
+	}
+	
+	/**
+	 * Drops the cached vectors of the filing that the specified submission amends,
+	 * which is any other submission of the same registrant for the same balance
+	 * sheet date. The vectors of the submission itself are dropped too. Submissions
+	 * that are not amendments only drop their own vectors.
+	 * 
+	 * @param submission
+	 */
+	public void invalidate(Submission submission) {
+		boolean amendment = submission.getForm() != null && submission.getForm().endsWith("/A");
+		synchronized(_entries) {
+			Iterator<Map.Entry<Key, Entry>> iterator = _entries.entrySet().iterator();
+			while(iterator.hasNext()) {
+				Map.Entry<Key, Entry> next = iterator.next();
+				if(next.getKey()._adsh.equals(submission.getAdsh()) ||
+						(amendment && next.getValue().isAmendedBy(submission)))
+					iterator.remove();
+			}
+		}
+	}
+	
+	/**
+	 * Drops every cached vector. The metrics of the cache are not reset.
+	 */
+	public void clear() {
+		synchronized(_entries) {
+			_entries.clear();
+		}
+	}
+	
+	/**
+	 * Changes the number of vectors that the cache holds. If the cache holds more
+	 * vectors than the new capacity, then the least recently used ones are evicted.
+	 * 
+	 * @param capacity
+	 */
+	public void setCapacity(int capacity) {
+		if(capacity < 0)
+			throw new IllegalArgumentException("Cache capacity must not be negative");
+		
+		synchronized(_entries) {
+			_capacity = capacity;
+			Iterator<Key> iterator = _entries.keySet().iterator();
+			while(_entries.size() > _capacity) {
+				iterator.next();
+				iterator.remove();
+				_evictions.incrementAndGet();
+			}
+		}
+	}
+	
+	public int getCapacity() {
+		synchronized(_entries) {
+			return _capacity;
+		}
+	}
+	
+	/**
+	 * @return number of vectors that the cache currently holds
+	 */
+	public int getSize() {
+		synchronized(_entries) {
+			return _entries.size();
+		}
+	}
+	
+	public long getHits() {
+		return _hits.get();
+	}
+	
+	public long getMisses() {
+		return _misses.get();
+	}
+	
+	public long getEvictions() {
+		return _evictions.get();
+	}
+	
+	/**
+	 * @return fraction of lookups that were served from the cache
+	 */
+	public double getHitRate() {
+		long hits = _hits.get(), lookups = hits + _misses.get();
+		return (lookups == 0) ? 0.0 : (double) hits / lookups;
+	}
+	
+	@Override
+	public String toString() {
+		return String.format("%d/%d vectors, %d hits, %d misses (%.1f%%), %d evictions", getSize(),
+				getCapacity(), getHits(), getMisses(), 100 * getHitRate(), getEvictions());
+	}
+	
+	/**
+	 * Returns a 64-bit FNV-1a hash of the names of the tags, in order. Tags are hashed
+	 * by name rather than by identity, because forecasts that were deserialized hold
+	 * their own copies of the tags.
+	 * 
+	 * @param tags
+	 * @return
+	 */
+	static long getFingerprint(List<Tag> tags) {
+		long hash = 0xcbf29ce484222325L;
+		for(Tag tag : tags) {
+			String name = tag.getName();
+			for(int i = 0; i < name.length(); i++) {
+				hash ^= name.charAt(i);
+				hash *= 0x100000001b3L;
+			}
+			
+			// Separate the names, so that "ab", "c" and "a", "bc" differ.
+			hash ^= 0xff;
+			hash *= 0x100000001b3L;
+		}
+		return hash;
+	}
+	
+	/**
+	 * The sources of growth vectors that miss the cache.
+	 */
+	public enum Source {
+		/** Loads every number of the submission, and computes the growth rates in Java. */
+		NUMBERS,
+		
+		/** Computes the growth rates inside the database. This requires MySQL 8.0 or later. */
+		PUSHDOWN,
+		
+		/** Reads the growth rates from the growth table, which is filled when submissions are loaded. */
+		TABLE;
+	}
+	
+	private static class Key {
+		
+		private final String _adsh;
+		private final long _fingerprint;
+		
+		private Key(String adsh, long fingerprint) {
+			_adsh = adsh;
+			_fingerprint = fingerprint;
+		}
+		
+		@Override
+		public boolean equals(Object obj) {
+			if(!(obj instanceof Key))
+				return false;
+			Key key = (Key) obj;
+			return _fingerprint == key._fingerprint && _adsh.equals(key._adsh);
+		}
+		
+		@Override
+		public int hashCode() {
+			return 31 * _adsh.hashCode() + (int) (_fingerprint ^ (_fingerprint >>> 32));
+		}
+	}
+	
+	/**
+	 * A cached growth vector, together with the identity of the filing it was computed
+	 * from.
+	 */
+	private static class Entry {
+		
+		private final double[] _growth;
+		private final Integer _cik;
+		private final Date _balanceSheetDate, _acceptedDate;
+		
+		private Entry(Submission submission, double[] growth) {
+			_growth = growth;
+			_cik = (submission.getRegistrant() == null) ? null : submission.getRegistrant().getCik();
+			_balanceSheetDate = submission.getBalanceSheetDate();
+			_acceptedDate = submission.getAcceptedDate();
+		}
+		
+		/**
+		 * Returns true if the vector was computed from the same acceptance of the
+		 * submission.
+		 * 
+		 * @param submission
+		 * @return
+		 */
+		private boolean isCurrent(Submission submission) {
+			return equals(_acceptedDate, submission.getAcceptedDate());
+		}
+		
+		private boolean isAmendedBy(Submission amendment) {
+			return _cik != null && amendment.getRegistrant() != null &&
+					_cik.equals(amendment.getRegistrant().getCik()) &&
+					_balanceSheetDate != null && equals(_balanceSheetDate, amendment.getBalanceSheetDate());
+		}
+		
+		private static boolean equals(Date a, Date b) {
+			return (a == null) ? b == null : b != null && a.getTime() == b.getTime();
+		}
+	}
+}
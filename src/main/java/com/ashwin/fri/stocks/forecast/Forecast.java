@@ -1,12 +1,28 @@
 package com.ashwin.fri.stocks.forecast;
 
+import java.io.File;
+import java.io.IOException;
 import java.io.Serializable;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
 import java.util.Date;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Random;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.Future;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.hibernate.Session;
 import org.hibernate.Transaction;
@@ -14,19 +30,66 @@ import org.hibernate.criterion.Order;
 import org.hibernate.criterion.Projections;
 import org.hibernate.criterion.Restrictions;
 
+import com.ashwin.fri.stocks.hibernate.Growth;
 import com.ashwin.fri.stocks.hibernate.HibernateConfig;
 import com.ashwin.fri.stocks.hibernate.Number;
 import com.ashwin.fri.stocks.hibernate.Submission;
 import com.ashwin.fri.stocks.hibernate.Tag;
+import com.ashwin.fri.stocks.neural.LearningRateSchedule;
 import com.ashwin.fri.stocks.neural.NeuralNetwork;
+import com.ashwin.fri.stocks.neural.Optimizer;
+import com.ashwin.fri.stocks.neural.QuantizedNeuralNetwork;
 
 public class Forecast implements Serializable {
 	
-	private static final long serialVersionUID = 6924154459214792834L;
+	private static final long serialVersionUID = -8493827855887942321L;
 	
+	/** Default number of deviations from the mean beyond which samples are outliers. */
 	private static final double MAX_DEVIATIONS = 2.2;
 	
+	/** Default sizes of the hidden layers of the networks. */
+	private static final int[] HIDDEN_LAYERS = { 10, 3 };
+	
+	/** Minimum number of milliseconds between training checkpoints. */
+	private static final long CHECKPOINT_INTERVAL = 60 * 1000;
+	
+	/** Growth vectors of recently used submissions, shared by every forecast. */
+	private static final FeatureCache FEATURES = new FeatureCache();
+	
+	/** Source of the model versions of every forecast. */
+	private static final AtomicLong VERSIONS = new AtomicLong();
+	
+	/** Maximum number of submissions whose growth vectors are loaded by a single query. */
+	private static final int GROWTH_BATCH_SIZE = 500;
+	
+	/**
+	 * Computes the growth rate of every tag of every submission from the first two
+	 * numbers of the tag, ordered by duration and then from the latest to the earliest
+	 * end date. Ties are broken by tag version, units and coregistrant, as they are by
+	 * getNumbers and by the growth table in parser.sql. Returns one row of (adsh, tag,
+	 * growth) per submission and tag.
+	 */
+	private static final String GROWTH_QUERY =
+			"SELECT p.adsh, p.name, " +
+			"IF(p.quarters <= 1, p.growth, SIGN(p.growth) * POW(ABS(p.growth), 1E0 / p.quarters)) " +
+			"FROM (" +
+				"SELECT g.adsh, g.name, 1E0 + (g.vn - g.vo) / ABS(IF(g.vo = 0, 1E0, g.vo)) AS growth, " +
+				"FLOOR(TIMESTAMPDIFF(SECOND, g.eo, g.en) * 1000E0 / 31556900000E0 * 4 + 0.5E0) AS quarters " +
+				"FROM (" +
+					"SELECT n.adsh, n.name, n.value * 1E0 AS vn, n.ddate AS en, " +
+					"LEAD(n.value * 1E0) OVER w AS vo, LEAD(n.ddate) OVER w AS eo, " +
+					"ROW_NUMBER() OVER w AS position " +
+					"FROM numbers n " +
+					"WHERE n.adsh IN (:adsh) AND n.name IN (:names) AND n.value IS NOT NULL " +
+					"WINDOW w AS (PARTITION BY n.adsh, n.name " +
+						"ORDER BY n.duration ASC, n.ddate DESC, n.version, n.units, n.coreg)" +
+				") g " +
+				"WHERE g.position = 1 AND g.vo IS NOT NULL" +
+			") p";
+	
 	private List<NeuralNetwork> _networks;
+	private List<QuantizedNeuralNetwork> _quantized;
+	private transient long _version;
 	
 	private List<Tag> _inputs;
 	private List<Tag> _outputs;
@@ -35,6 +98,17 @@ public class Forecast implements Serializable {
 	private List<Statistic> _sout;
 	
 	private int _sic;
+	private double _deviations = MAX_DEVIATIONS;
+	
+	private int _epochs = 1, _patience = 1;
+	private double _validation = 0.0;
+	
+	private boolean _cumulative = false;
+	private int _accuracy = 0;
+	
+	private boolean _streaming = false;
+	private int _prefix = 0;
+	private int _threads = HibernateConfig.POOL_SIZE;
 	
 	public Forecast(int sic, int inputs, String... tagNames) {
 		this(sic, inputs, getTagsByNames(tagNames));
@@ -48,11 +122,32 @@ public class Forecast implements Serializable {
 	 * @param inputs
 	 * @param outputs
 	 */
-	@SuppressWarnings("unchecked")
 	public Forecast(int sic, int inputs, List<Tag> outputs) {
+		this(sic, inputs, outputs, HIDDEN_LAYERS);
+	}
+	
+	/**
+	 * Creates a new forecast for a particular sic code, using the "inputs" most
+	 * common tags as inputs and the output tag as outputs. Each network has hidden
+	 * layers of the specified sizes.
+	 * 
+	 * @param sic
+	 * @param inputs
+	 * @param outputs
+	 * @param hidden sizes of the hidden layers
+	 */
+	@SuppressWarnings("unchecked")
+	public Forecast(int sic, int inputs, List<Tag> outputs, int... hidden) {
+		// The networks take the average number of deviations and the filer status
+		// as inputs in addition to the input tags, and produce a single output.
+		int[] nodes = new int[hidden.length + 2];
+		nodes[0] = inputs + 2;
+		System.arraycopy(hidden, 0, nodes, 1, hidden.length);
+		nodes[nodes.length - 1] = 1;
+		
 		_networks = new ArrayList<NeuralNetwork>();
 		for(int i = 0; i < outputs.size(); i++)
-			_networks.add(new NeuralNetwork(inputs+2, 10, 3, 1));
+			_networks.add(new NeuralNetwork(nodes));
 		
 		_outputs = outputs;
 		_sic = sic;
@@ -108,10 +203,46 @@ public class Forecast implements Serializable {
 		return _sic;
 	}
 	
+	/**
+	 * Returns the model version of the forecast, which changes every time the forecast
+	 * is trained, updated or quantized, so that results of earlier versions can be told
+	 * apart. Versions are unique among the forecasts of the process, but aren't saved
+	 * with the forecast.
+	 * 
+	 * @return model version
+	 */
+	public synchronized long getVersion() {
+		if(_version == 0)
+			_version = VERSIONS.incrementAndGet();
+		return _version;
+	}
+	
+	private synchronized void setChanged() {
+		_version = VERSIONS.incrementAndGet();
+	}
+	
+	/**
+	 * @return networks of the forecast, or null once the forecast has been quantized
+	 */
 	public List<NeuralNetwork> getNeuralNetwork() {
 		return _networks;
 	}
 	
+	public double getMaxDeviations() {
+		return _deviations;
+	}
+	
+	/**
+	 * Changes the number of deviations from the mean beyond which training samples
+	 * are considered outliers. Targets are scaled by this number, so the forecast has
+	 * to be trained again after it is changed.
+	 * 
+	 * @param deviations
+	 */
+	public void setMaxDeviations(double deviations) {
+		_deviations = deviations;
+	}
+	
 	/**
 	 * Predicts outputs for the given submission. Outputs are the growth rates of the
 	 * corresponding output tags.
@@ -120,23 +251,174 @@ public class Forecast implements Serializable {
 	 * @return
 	 */
 	public List<Double> predict(Submission submission) {
-		List<Double> gi = getGrowthVector(submission, _inputs);
-		List<Double> ii = getInterpolatedVector(gi, _sin);
-		
-		// Adds additional data to the interpolated vector. Note these additions
-		// must be performed in the exact same order as the additions in the train
-		// method. If this requirement is not satisfied, then results are unpredictable.
-		ii.add(Double.valueOf(submission.getFilerStatus().ordinal()+1));
+		double[] predicted = predict(getInputVector(submission));
+		List<Double> out = new ArrayList<Double>();
+		for(double value : predicted)
+			out.add(value);
+		return out;
+	}
+	
+	/**
+	 * Predicts the outputs of every submission. The growth vectors of the submissions
+	 * that are not cached are loaded in bulk, instead of one submission at a time.
+	 * Predictions don't modify the forecast, so several threads may predict at once.
+	 * 
+	 * @param submissions
+	 * @return outputs of each submission
+	 */
+	public double[][] predict(List<Submission> submissions) {
+		double[][] growths = FEATURES.getAll(submissions, _inputs);
+		double[][] out = new double[submissions.size()][];
+		for(int k = 0; k < out.length; k++) {
+			double[] ii = new double[_inputs.size() + 2];
+			System.arraycopy(growths[k], 0, ii, 1, _inputs.size());
+			setInputVector(ii, submissions.get(k), _sin);
+			out[k] = predict(ii);
+		}
+		return out;
+	}
+	
+	/**
+	 * Projects the outputs of the submission over the specified number of future
+	 * quarters. The first quarter is predicted from the submission itself, and every
+	 * later quarter is predicted from the quarter before it: the predicted growth of
+	 * each output tag that is also an input tag replaces the growth of that input, and
+	 * the growth of every other input carries over unchanged. The growth vector of the
+	 * submission is only loaded once, and every quarter reuses the same feature vectors,
+	 * so a long projection costs little more than a single prediction.
+	 * 
+	 * @param submission
+	 * @param quarters number of quarters to project
+	 * @return outputs of each quarter
+	 */
+	public double[][] project(Submission submission, int quarters) {
+		// Step 1: Determine which input each output is fed back into.
+		int[] feedback = new int[_outputs.size()];
+		for(int j = 0; j < _outputs.size(); j++) {
+			feedback[j] = -1;
+			for(int i = 0; i < _inputs.size(); i++)
+				if(_inputs.get(i).getName().equals(_outputs.get(j).getName()))
+					feedback[j] = i;
+		}
 		
+		// Step 2: Predict every quarter from the raw growth vector of the quarter before.
+		// The raw vector keeps its missing values, so that they are interpolated from the
+		// fed back growth rates every quarter, as they would be for a real submission.
+		double[] growth = getGrowthVector(submission, _inputs, new double[_inputs.size()], 0);
+		double[] ii = new double[_inputs.size() + 2];
+		double[][] out = new double[quarters][];
+		for(int q = 0; q < quarters; q++) {
+			System.arraycopy(growth, 0, ii, 1, growth.length);
+			setInputVector(ii, submission, _sin);
+			out[q] = predict(ii);
+			
+			for(int j = 0; j < feedback.length; j++)
+				if(feedback[j] >= 0)
+					growth[feedback[j]] = out[q][j];
+		}
+		return out;
+	}
+	
+	/**
+	 * Returns the outputs of the networks for the input vector.
+	 * 
+	 * @param ii
+	 * @return
+	 */
+	private double[] predict(double[] ii) {
 		// Adjust the outputs of the neural network back onto the proper interval
 		// and perform the inverse of the normalization procedure to recover actuals.
-		List<Double> out = new ArrayList<Double>();
-		for(int i = 0; i < _networks.size(); i++)
-			out.add(_sout.get(i).raw(MAX_DEVIATIONS * (_networks.get(i).execute(ii).get(0) - 0.5)));
-		
+		// If the forecast has been quantized, the quantized networks are used instead.
+		double[] out = new double[_outputs.size()];
+		for(int i = 0; i < out.length; i++) {
+			double potential = (_quantized == null) ? 
+					_networks.get(i).execute(ii)[0] : 
+					_quantized.get(i).execute(ii)[0];
+			out[i] = _sout.get(i).raw(_deviations * (potential - 0.5));
+		}
 		return out;
 	}
 	
+	/**
+	 * Quantizes the trained networks of the forecast to 8-bit weights. Subsequent
+	 * predictions are served by the quantized networks, and the original networks are
+	 * dropped, so that only the quantized networks are serialized with the forecast.
+	 * A quantized forecast can't be trained again. The method returns the mean absolute
+	 * difference, in units of growth, between the predictions of the quantized and the
+	 * original networks for each output tag over the held-out submissions.
+	 * 
+	 * The quantized networks normalize their inputs by the input statistics before
+	 * quantizing them, so that a tag with a wide range of growth, or the filer status,
+	 * doesn't take up the quanta of every other input.
+	 * 
+	 * @param holdout submissions that the forecast was not trained on
+	 * @return accuracy loss for each output tag
+	 */
+	public List<Double> quantize(Collection<Submission> holdout) {
+		checkTrainable();
+		
+		List<double[]> inputs = new ArrayList<double[]>();
+		for(Submission submission : holdout)
+			inputs.add(getInputVector(submission));
+		
+		// The first input is already a number of deviations from the mean, and the filer
+		// status ranges from one to the number of statuses.
+		int statuses = Submission.FilerStatus.values().length;
+		double[] means = new double[_inputs.size() + 2];
+		double[] deviations = new double[means.length];
+		deviations[0] = 1.0;
+		for(int k = 0; k < _inputs.size(); k++) {
+			means[k + 1] = _sin.get(k).getMean();
+			deviations[k + 1] = _sin.get(k).getStandardDeviation();
+		}
+		means[means.length - 1] = (statuses + 1) / 2.0;
+		deviations[deviations.length - 1] = Math.max(1.0, (statuses - 1) / 2.0);
+		
+		List<QuantizedNeuralNetwork> quantized = new ArrayList<QuantizedNeuralNetwork>();
+		List<Double> errors = new ArrayList<Double>();
+		for(int i = 0; i < _networks.size(); i++) {
+			NeuralNetwork network = _networks.get(i);
+			QuantizedNeuralNetwork qn = new QuantizedNeuralNetwork(network, means, deviations);
+			
+			// The quantization error is measured on the network outputs, which lie
+			// on the interval [0.0 - 1.0], and then scaled back into growth units.
+			double error = qn.getQuantizationError(network, inputs);
+			errors.add(error * _deviations * _sout.get(i).getStandardDeviation());
+			quantized.add(qn);
+		}
+		
+		_quantized = quantized;
+		_networks = null;
+		setChanged();
+		return errors;
+	}
+	
+	public List<QuantizedNeuralNetwork> getQuantizedNeuralNetwork() {
+		return _quantized;
+	}
+	
+	/**
+	 * Throws an exception if the forecast has been quantized, because the original
+	 * networks that training would change are gone.
+	 */
+	private void checkTrainable() {
+		if(_networks == null)
+			throw new IllegalStateException("Forecast for SIC " + _sic + " has been quantized");
+	}
+	
+	/**
+	 * Returns the input vector of the neural networks for the given submission.
+	 * 
+	 * @param submission
+	 * @return
+	 */
+	private double[] getInputVector(Submission submission) {
+		double[] ii = new double[_inputs.size() + 2];
+		getGrowthVector(submission, _inputs, ii, 1);
+		setInputVector(ii, submission, _sin);
+		return ii;
+	}
+	
 	/**
 	 * Trains the forecast on data from the specified fiscal year and fiscal period.
 	 * The method returns all submissions in the specified time period that the forecast
@@ -152,11 +434,430 @@ public class Forecast implements Serializable {
 	 * @return
 	 * @throws Exception
 	 */
-	@SuppressWarnings("unchecked")
 	public Set<Submission> train(Date start, Date end, double confidence, double learningRate) throws Exception {
+		return train(start, end, confidence, learningRate, null);
+	}
+	
+	/**
+	 * Trains the forecast and periodically checkpoints the training progress to the
+	 * specified file. If the file contains a checkpoint of an earlier run with the same
+	 * arguments, then the networks and statistics are restored from the checkpoint and
+	 * training resumes with the first submission after the training cursor, or with the
+	 * next epoch if the checkpoint was taken between epochs. In this case, only the
+	 * submissions trained after the checkpoint are returned. The checkpoint file is
+	 * deleted once training completes.
+	 * 
+	 * @param start
+	 * @param end
+	 * @param confidence
+	 * @param learningRate
+	 * @param checkpoint checkpoint file, or null to disable checkpoints
+	 * @return
+	 * @throws Exception
+	 */
+	public Set<Submission> train(Date start, Date end, double confidence, double learningRate, 
+			File checkpoint) throws Exception {
+		checkTrainable();
+		
 		// Step 1: Generate the Training Data
 		// The training data includes all submissions from the start date to the end date
 		// that have a maximum of (1 - confidence) * _inputs.size() interpolated values.
+		List<Submission> submissions = getSubmissions(start, end);
+		
+		// If the growth vectors are read from the growth table, then load the growth
+		// vectors of the whole industry at once through its index on (sic, filed).
+		FEATURES.load(_sic, start, end, _inputs);
+		FEATURES.load(_sic, start, end, _outputs);
+		
+		// If there is a checkpoint of an earlier run with the same arguments, then
+		// restore the networks and statistics. If the checkpoint was taken in the middle
+		// of a single pass, skip all the submissions up to and including the training
+		// cursor. If it was taken between epochs, continue with the next epoch.
+		Checkpoint resume = (checkpoint == null) ? null : Checkpoint.read(checkpoint);
+		boolean resumed = false;
+		int first = 0, epoch = 0;
+		double best = Double.MAX_VALUE;
+		if(resume != null && resume.isResumableBy(this, start, end, confidence)) {
+			if(resume.isEpochCheckpoint()) {
+				resumed = true;
+				epoch = resume.getEpoch();
+				best = resume.getLoss();
+			} else {
+				for(int i = 0; i < submissions.size(); i++) {
+					Submission submission = submissions.get(i);
+					if(submission.getRegistrant().getCik().equals(resume.getCik()) &&
+							submission.getFilingDate().equals(resume.getFilingDate()) &&
+							(resume.getAdsh() == null || submission.getAdsh().equals(resume.getAdsh()))) {
+						resumed = true;
+						first = i + 1;
+						break;
+					}
+				}
+			}
+		}
+		
+		if(resumed) {
+			_networks = resume.getNeuralNetwork();
+			_sin = resume.getInputStatistics();
+			_sout = resume.getOutputStatistics();
+		}
+		
+		// Steps 2 - 4: Generate the training samples in a pipeline, which loads and
+		// normalizes samples while the networks train on earlier ones. When resuming from
+		// a checkpoint, the statistics were calculated by the earlier run. When streaming,
+		// the statistics of the earlier runs are reused, so training can begin with the
+		// first sample instead of waiting for the last one. Otherwise, the statistics are
+		// calculated from a prefix of the samples, unless the networks train for several
+		// epochs, which has to wait for every sample anyway.
+		boolean statistics = !resumed && !(_streaming && _sin != null);
+		int prefix = (_epochs == 1) ? _prefix : 0;
+		Checkpointer checkpointer = (checkpoint == null) ? null : new Checkpointer(checkpoint);
+		Throwable failure = null;
+		try {
+			TrainingPipeline pipeline = new TrainingPipeline(this, submissions, first, confidence, statistics,
+					prefix, _threads, TrainingPipeline.DEFAULT_CAPACITY);
+			
+			Set<Submission> training;
+			try {
+				pipeline.start();
+				training = (_epochs == 1) ?
+						train(pipeline, start, end, confidence, learningRate, checkpointer) :
+						train(pipeline.drain(), start, end, confidence, learningRate, epoch, best, checkpointer);
+			} finally {
+				pipeline.close();
+				
+				// The version changes once the weights have changed, so that results that
+				// were calculated while training ran are never mistaken for the new model.
+				setChanged();
+			}
+			
+			// Training completed successfully, so there is nothing left to resume.
+			if(checkpointer != null)
+				checkpointer.delete();
+			
+			return training;
+		} catch(Throwable t) {
+			failure = t;
+			throw t;
+		} finally {
+			// If training failed, the last scheduled checkpoint is still written before the
+			// background thread of the checkpointer stops, so the run can be resumed. A
+			// checkpoint that couldn't be written never hides the failure of training.
+			if(checkpointer != null) {
+				try {
+					checkpointer.close();
+				} catch(IOException e) {
+					if(failure == null)
+						throw e;
+					if(failure != e)
+						failure.addSuppressed(e);
+				}
+			}
+		}
+	}
+	
+	/**
+	 * Trains the forecast on a few new samples without recalculating the statistics,
+	 * for example when new submissions have been filed since the forecast was trained.
+	 * The submissions must be ordered by registrant and filing date, exactly as they are
+	 * for train, so the previous filing of each registrant must precede its new filings.
+	 * The samples are normalized with the statistics of the earlier calls to train, and
+	 * the networks make a single pass over them.
+	 * 
+	 * @param submissions submissions ordered by registrant and filing date
+	 * @param confidence
+	 * @param learningRate
+	 * @return submissions that were trained
+	 * @throws Exception
+	 */
+	public Set<Submission> update(List<Submission> submissions, double confidence, double learningRate)
+			throws Exception {
+		if(_sin == null || _sout == null)
+			throw new IllegalStateException("Forecast for SIC " + _sic + " must be trained before it is updated");
+		
+		checkTrainable();
+		
+		TrainingPipeline pipeline = new TrainingPipeline(this, submissions, 0, confidence, false, 0,
+				_threads, TrainingPipeline.DEFAULT_CAPACITY);
+		try {
+			pipeline.start();
+			return train(pipeline, null, null, confidence, learningRate, null);
+		} finally {
+			pipeline.close();
+			setChanged();
+		}
+	}
+	
+	/**
+	 * Step 5: Runs each sample through the neural networks as soon as it comes out of
+	 * the pipeline, and periodically checkpoints the progress of the pass. The checkpoint
+	 * is written in the background, so this only costs a copy of the network weights.
+	 * 
+	 * @param pipeline
+	 * @param start
+	 * @param end
+	 * @param confidence
+	 * @param learningRate
+	 * @param checkpointer checkpointer, or null to disable checkpoints
+	 * @return submissions that were trained
+	 * @throws Exception
+	 */
+	private Set<Submission> train(TrainingPipeline pipeline, Date start, Date end, double confidence,
+			double learningRate, Checkpointer checkpointer) throws Exception {
+		long lastCheckpoint = System.currentTimeMillis();
+		Set<Submission> training = new HashSet<Submission>();
+		Submission cursor = null;
+		for(TrainingPipeline.Sample sample = pipeline.next(); sample != null; sample = pipeline.next()) {
+			if(checkpointer != null && cursor != null &&
+					System.currentTimeMillis() - lastCheckpoint > CHECKPOINT_INTERVAL) {
+				checkpointer.write(new Checkpoint(this, start, end, confidence, _networks,
+						cursor.getRegistrant().getCik(), cursor.getFilingDate(), cursor.getAdsh()));
+				lastCheckpoint = System.currentTimeMillis();
+			}
+			
+			double[] targets = sample.getTargets();
+			for(int j = 0; j < targets.length; j++) {
+				if(Double.isNaN(targets[j]))
+					continue;
+				
+				_networks.get(j).backpropagate(sample.getInputs(), new double[] { targets[j] }, learningRate);
+				training.add(sample.getSubmission());
+			}
+			cursor = sample.getSubmission();
+		}
+		
+		return training;
+	}
+	
+	/**
+	 * Step 5: Runs each sample through the neural networks over multiple epochs. Every
+	 * epoch visits the training samples in a different order. Training stops once the
+	 * validation loss has not improved for a number of epochs, and the networks with the
+	 * lowest validation loss are kept. The best networks so far are checkpointed between
+	 * epochs.
+	 * 
+	 * @param set
+	 * @param start
+	 * @param end
+	 * @param confidence
+	 * @param learningRate
+	 * @param epoch first epoch
+	 * @param best lowest validation loss of the earlier epochs
+	 * @param checkpointer checkpointer, or null to disable checkpoints
+	 * @return submissions that were trained
+	 */
+	private Set<Submission> train(TrainingSet set, Date start, Date end, double confidence,
+			double learningRate, int epoch, double best, Checkpointer checkpointer) {
+		// The most recently filed samples are held out to measure the validation loss
+		// after each epoch.
+		int split = set.split(_validation);
+		Random random = new Random();
+		
+		Set<Submission> training = new HashSet<Submission>();
+		List<NeuralNetwork> fittest = null;
+		int stale = 0;
+		
+		// When resuming from an epoch checkpoint, the restored networks are the best so
+		// far, so they are kept unless a later epoch improves on their loss.
+		if(best < Double.MAX_VALUE) {
+			fittest = new ArrayList<NeuralNetwork>();
+			for(NeuralNetwork network : _networks)
+				fittest.add(new NeuralNetwork(network));
+		}
+		for(; epoch < _epochs; epoch++) {
+			set.shuffle(0, split, random);
+			for(int i = 0; i < split; i++) {
+				double[] targets = set.getTargets()[i];
+				for(int j = 0; j < targets.length; j++) {
+					if(Double.isNaN(targets[j]))
+						continue;
+					
+					_networks.get(j).backpropagate(set.getInputs()[i], new double[] { targets[j] }, learningRate);
+					training.add(set.getSubmissions().get(i));
+				}
+			}
+			
+			// Stop early if the validation loss has stopped improving. If there is no
+			// validation set, then the loss is NaN and training runs for every epoch.
+			double loss = getValidationLoss(set, split);
+			if(loss < best) {
+				best = loss;
+				stale = 0;
+				fittest = new ArrayList<NeuralNetwork>();
+				for(NeuralNetwork network : _networks)
+					fittest.add(new NeuralNetwork(network));
+			} else if(!Double.isNaN(loss) && ++stale >= _patience) {
+				break;
+			}
+			
+			// Checkpoint the best networks so far between epochs. If training is resumed,
+			// it continues from these networks.
+			if(checkpointer != null)
+				checkpointer.write(new Checkpoint(this, start, end, confidence,
+						(fittest == null) ? _networks : fittest, epoch + 1, best));
+		}
+		
+		if(fittest != null)
+			_networks = fittest;
+		
+		return training;
+	}
+	
+	/**
+	 * Generates the training samples from the submissions from the start date to the end
+	 * date, without training the networks. The column statistics of the forecast are
+	 * recalculated over these submissions, exactly as they would be by train.
+	 * 
+	 * @param start
+	 * @param end
+	 * @param confidence
+	 * @return
+	 * @throws Exception
+	 */
+	public TrainingSet getTrainingSet(Date start, Date end, double confidence) throws Exception {
+		return getTrainingSet(getSubmissions(start, end), 0, confidence, true);
+	}
+	
+	/**
+	 * Configures the number of passes that train makes over the training data. After
+	 * each epoch, the loss is measured on the most recently filed fraction of samples,
+	 * which are never trained on. Training stops early once this validation loss has not
+	 * improved for the specified number of epochs. By default, train makes a single pass
+	 * over all the data.
+	 * 
+	 * @param epochs maximum number of epochs
+	 * @param validation fraction of samples to hold out for validation
+	 * @param patience number of epochs without improvement before training stops
+	 */
+	public void setEarlyStopping(int epochs, double validation, int patience) {
+		_epochs = epochs;
+		_validation = validation;
+		_patience = patience;
+	}
+	
+	/**
+	 * @return maximum number of epochs, or one for a single pass
+	 */
+	public int getEpochs() {
+		return _epochs;
+	}
+	
+	/**
+	 * Configures whether the column statistics of each call to train are merged with
+	 * the statistics of the previous calls, rather than replacing them. When a forecast
+	 * is trained quarter by quarter, this lets the normalization reflect all the data
+	 * the networks have seen instead of only the latest quarter. Cumulative statistics
+	 * keep their moments and a quantile sketch, so their memory doesn't grow with the
+	 * number of quarters, but the merged statistics are an approximation of the
+	 * statistics of every quarter at once (see {@link Statistic#merge}). By default,
+	 * the statistics are recalculated from scratch.
+	 * 
+	 * @param cumulative
+	 */
+	public void setCumulativeStatistics(boolean cumulative) {
+		_cumulative = cumulative;
+	}
+	
+	/**
+	 * Configures how the outlier fences of the column statistics are computed. With an
+	 * accuracy of zero, the default, the quartiles of each column are exact. Otherwise,
+	 * the quartiles are estimated by a quantile sketch of the specified capacity, which
+	 * bounds the memory of each statistic for very large samples.
+	 * 
+	 * @param accuracy capacity of the quantile sketch, or zero for exact quartiles
+	 */
+	public void setSketchAccuracy(int accuracy) {
+		_accuracy = accuracy;
+	}
+	
+	/**
+	 * Configures the pipeline that generates the training samples. Samples are loaded
+	 * from the database by the specified number of threads, which should not exceed
+	 * the size of the connection pool. When streaming, train normalizes the samples
+	 * with the statistics of the earlier calls to train instead of recalculating them,
+	 * so the networks can train on the first sample while the rest are still loading.
+	 * The statistics are only recalculated on the first call, or once streaming is
+	 * turned off again. By default, the statistics are recalculated from every sample
+	 * on every call.
+	 * 
+	 * @param threads number of threads that load samples from the database
+	 * @param streaming true if the statistics of earlier calls should be reused
+	 */
+	public void setPipeline(int threads, boolean streaming) {
+		setPipeline(threads, streaming, 0);
+	}
+	
+	/**
+	 * Configures the pipeline that generates the training samples. When the statistics
+	 * are recalculated during a single pass, they are calculated from the specified
+	 * number of samples that come first, and the networks only wait for those samples
+	 * before they start training. The samples are ordered by registrant, so a prefix
+	 * covers only some of the registrants, and its statistics may differ from the
+	 * statistics of every sample. A prefix of zero, the default, calculates the
+	 * statistics from every sample, which is exact but idles the networks until the
+	 * last sample has loaded. Loading and growth computations still overlap either way.
+	 * 
+	 * @param threads number of threads that load samples from the database
+	 * @param streaming true if the statistics of earlier calls should be reused
+	 * @param prefix number of samples the statistics are calculated from, or zero for all
+	 */
+	public void setPipeline(int threads, boolean streaming, int prefix) {
+		_threads = threads;
+		_streaming = streaming;
+		_prefix = prefix;
+	}
+	
+	/**
+	 * Changes the optimizer and learning rate schedule of each of the networks.
+	 * 
+	 * @param optimizer
+	 * @param schedule
+	 */
+	public void setOptimizer(Optimizer optimizer, LearningRateSchedule schedule) {
+		checkTrainable();
+		for(NeuralNetwork network : _networks) {
+			network.setOptimizer(optimizer);
+			network.setSchedule(schedule);
+		}
+	}
+	
+	/**
+	 * Returns the mean squared error of the networks over the validation samples, which
+	 * are the samples from the specified index to the end of the training set.
+	 * 
+	 * @param set
+	 * @param split index of the first validation sample
+	 * @return validation loss, or NaN if there are no validation samples
+	 */
+	private double getValidationLoss(TrainingSet set, int split) {
+		double loss = 0.0;
+		int count = 0;
+		for(int i = split; i < set.size(); i++) {
+			double[] targets = set.getTargets()[i];
+			for(int j = 0; j < targets.length; j++) {
+				if(Double.isNaN(targets[j]))
+					continue;
+				
+				double error = _networks.get(j).execute(set.getInputs()[i])[0] - targets[j];
+				loss += error * error;
+				count++;
+			}
+		}
+		return loss / count;
+	}
+	
+	/**
+	 * Returns all 10-K and 10-Q submissions in the industry from the start date to the
+	 * end date, ordered by registrant and then chronologically. Registrants are ordered
+	 * by name and then by CIK, so that the submissions of registrants with the same name
+	 * are never interleaved and every registrant forms one consecutive partition.
+	 * 
+	 * @param start
+	 * @param end
+	 * @return
+	 */
+	@SuppressWarnings("unchecked")
+	List<Submission> getSubmissions(Date start, Date end) {
 		Session session = HibernateConfig.FACTORY.openSession();
 		Transaction tx  = session.beginTransaction();
 		
@@ -172,84 +873,240 @@ public class Forecast implements Serializable {
 				.add(Restrictions.ge("filingDate", start))
 				.add(Restrictions.le("filingDate", end))
 				.addOrder(Order.desc("registrant.name"))
+				.addOrder(Order.asc("registrant.cik"))
 				.addOrder(Order.asc("filingDate"))
+				.addOrder(Order.asc("acceptedDate"))
 				.list();
 		
 		tx.rollback();
 		session.close();
+		return submissions;
+	}
+	
+	/**
+	 * Loads the raw growth vectors of every consecutive pair of the submissions that
+	 * belong to the same registrant. The submissions are partitioned by registrant, and
+	 * the partitions are loaded in parallel, each into its own list of pairs. The lists
+	 * are concatenated in the order of the partitions, so the pairs are in the same
+	 * order as the submissions no matter how many threads load them.
+	 * 
+	 * @param submissions submissions ordered by registrant and filing date
+	 * @param threads number of threads that load from the database
+	 * @return
+	 * @throws InterruptedException
+	 */
+	List<Pair> getPairs(List<Submission> submissions, int threads) throws InterruptedException {
+		// Step 1: Partition the submissions into the consecutive submissions of each registrant.
+		List<List<Submission>> partitions = new ArrayList<List<Submission>>();
+		for(int i = 0; i < submissions.size(); i++) {
+			if(i == 0 || !submissions.get(i).getRegistrant().equals(submissions.get(i-1).getRegistrant()))
+				partitions.add(new ArrayList<Submission>());
+			partitions.get(partitions.size() - 1).add(submissions.get(i));
+		}
 		
-		// Step 2: Throw out invalid training submission candidates. These submissions
-		// include those whose values are abnormally large or abnormally small and those
-		// that contain excessive null inputs or any null output values. 
-		List<List<Double>> ri  = new ArrayList<List<Double>>();
-		List<List<Double>> ro = new ArrayList<List<Double>>();
-		for(int i = 0; i < submissions.size() - 1; i++) {
-			// The output values of a submission are the current values of the next filed
-			// submission. If the data for the next filed submission is unknown, then we
-			// can't use this submission as traning data.
-			if(!submissions.get(i+0).getRegistrant()
-					.equals(submissions.get(i+1).getRegistrant()))
-				continue;
-			
-			List<Double> gi = getGrowthVector(submissions.get(i+0), _inputs);
-			List<Double> go = getGrowthVector(submissions.get(i+1), _outputs);
-
-			double totalNullValues = 0;
-			for(Double val : gi)
-				if(val == null)
-					totalNullValues++;
+		// Step 2: Load the pairs of every partition in parallel, and merge them in the
+		// order of the partitions.
+		ExecutorService executor = Executors.newFixedThreadPool(threads);
+		try {
+			List<Future<List<Pair>>> futures = new ArrayList<Future<List<Pair>>>();
+			for(final List<Submission> partition : partitions) {
+				futures.add(executor.submit(new Callable<List<Pair>>() {
+					@Override
+					public List<Pair> call() {
+						List<Pair> pairs = new ArrayList<Pair>();
+						for(int i = 0; i < partition.size() - 1; i++)
+							pairs.add(new Pair(partition.get(i+0), partition.get(i+1),
+									getGrowthVector(partition.get(i+0), _inputs, new double[_inputs.size()], 0),
+									getGrowthVector(partition.get(i+1), _outputs, new double[_outputs.size()], 0)));
+						return pairs;
+					}
+				}));
+			}
 			
-			// If the input vector doesn't contain too may null values and the output
-			// vector doesn't contain any input values, we add the two vectors to the
-			// training raw data set.
-			if(totalNullValues / gi.size() <= 1 - confidence) {
-				ri.add(gi);
-				ro.add(go);
+			List<Pair> pairs = new ArrayList<Pair>();
+			for(Future<List<Pair>> future : futures) {
+				try {
+					pairs.addAll(future.get());
+				} catch(ExecutionException e) {
+					// Loading growth vectors only throws unchecked exceptions.
+					if(e.getCause() instanceof Error)
+						throw (Error) e.getCause();
+					throw (RuntimeException) e.getCause();
+				}
 			}
+			return pairs;
+		} finally {
+			executor.shutdownNow();
 		}
-		
-		// Step 3: Calculate the column statistics for the columns of the input and
-		// output matrixes. We don't want to include null valued columns in the
-		// statistic calculation. s -> stat
-		_sin = getColumnStatistics(ri);
-		_sout = getColumnStatistics(ro);
-		
-		// Step 4: Run each submission through the neural network. First, compute
-		// what the input vector to the neural network should be. If a value is null
-		// in the raw data, then interpolate its value from the average number of
-		// deviations from the mean and the column statistics for the particular tag.
-		Set<Submission> training = new HashSet<Submission>();
-		for(int i = 0; i < ri.size() && i < ro.size(); i++) {
-			List<Double> ii = getInterpolatedVector(ri.get(i), _sin);
-			List<Double> oi = getInterpolatedVector(ro.get(i), _sout);
-			
-			if(getAbsoluteMaximum(ii) > MAX_DEVIATIONS || getAbsoluteMaximum(oi) > MAX_DEVIATIONS)
+	}
+	
+	/**
+	 * Generates the training samples from consecutive pairs of the specified submissions,
+	 * starting with the submission at the specified index.
+	 * 
+	 * @param submissions submissions ordered by registrant and filing date
+	 * @param first index of the first submission
+	 * @param confidence
+	 * @param statistics true if the column statistics should be recalculated
+	 * @return
+	 * @throws Exception
+	 */
+	private TrainingSet getTrainingSet(List<Submission> submissions, int first, double confidence,
+			boolean statistics) throws Exception {
+		TrainingPipeline pipeline = new TrainingPipeline(this, submissions, first, confidence, statistics, 0,
+				_threads, TrainingPipeline.DEFAULT_CAPACITY);
+		try {
+			pipeline.start();
+			return pipeline.drain();
+		} finally {
+			pipeline.close();
+		}
+	}
+	
+	/**
+	 * Step 3: Calculate the column statistics for the columns of the input and output
+	 * matrixes. We don't want to include null valued columns in the statistic calculation.
+	 * If the statistics are cumulative, then they are merged into the earlier statistics,
+	 * unless those were calculated before the statistics became cumulative.
+	 * 
+	 * @param ri raw input feature rows
+	 * @param ro raw output growth vectors
+	 * @param size number of rows
+	 */
+	void setStatistics(double[][] ri, double[][] ro, int size) {
+		List<Statistic> sin = getColumnStatistics(ri, size, 1, _inputs.size(), _accuracy, _cumulative);
+		List<Statistic> sout = getColumnStatistics(ro, size, 0, _outputs.size(), _accuracy, _cumulative);
+		_sin = (_cumulative && isMergeable(_sin)) ? merge(_sin, sin) : sin;
+		_sout = (_cumulative && isMergeable(_sout)) ? merge(_sout, sout) : sout;
+	}
+	
+	List<Statistic> getInputStatistics() {
+		return _sin;
+	}
+	
+	/**
+	 * @return statistics of the growth of each output tag over the training samples
+	 */
+	public List<Statistic> getOutputStatistics() {
+		return _sout;
+	}
+	
+	/**
+	 * Generates training samples from the raw input and output feature rows, which are
+	 * transformed in place. If a value is missing (NaN) in the raw data, then interpolate
+	 * its value from the average number of deviations from the mean and the column
+	 * statistics for the tag. Samples with values more than the specified number of
+	 * deviations from the mean are thrown out. The rows of the remaining samples become
+	 * the inputs and targets of the training set, and are moved to the front of the
+	 * arrays in their original order.
+	 * 
+	 * An input row has the layout described by {@link #getFeatureRow}. An output row
+	 * contains the raw growth of each output tag, and is replaced by the targets.
+	 * 
+	 * @param ri raw input feature rows
+	 * @param ro raw output growth vectors
+	 * @param rs submission of each pair of rows
+	 * @param size number of rows
+	 * @param sin input column statistics
+	 * @param sout output column statistics
+	 * @param deviations maximum number of deviations
+	 * @return
+	 */
+	static TrainingSet getTrainingSet(double[][] ri, double[][] ro, List<Submission> rs, int size,
+			List<Statistic> sin, List<Statistic> sout, double deviations) {
+		List<Submission> samples = new ArrayList<Submission>();
+		double[] oi = new double[sout.size() + 1];
+		int count = 0;
+		for(int i = 0; i < size; i++) {
+			if(!toTrainingSample(ri[i], ro[i], rs.get(i), sin, sout, deviations, oi))
 				continue;
 			
-			for(int j = 0; j < oi.size(); j++) {
-				List<Double> to = new ArrayList<Double>();
-				to.add(oi.get(j) / MAX_DEVIATIONS + 0.5);
-				
-			}
-			
-			// Add additional data to the interpolated input vector. Note that this has
-			// to be performed in the exact same order as it is in the predict method
-			// or the input vector components will differ and results will be unpredictable.
-			ii.add(Double.valueOf(submissions.get(i).getFilerStatus().ordinal()+1));
-			
-			// Transform the interpolated output values onto the proper interval [0.0 - 1.0]
-			for(int j = 1; j < oi.size(); j++) {
-				if(ro.get(i).get(j-1) == null)
-					continue;
-				
-				List<Double> to = new ArrayList<Double>();
-				to.add(oi.get(j) / MAX_DEVIATIONS + 0.5);
-				_networks.get(j-1).backpropagate(ii, to, learningRate);
-				training.add(submissions.get(i));
-			}
+			ri[count] = ri[i];
+			ro[count] = ro[i];
+			samples.add(rs.get(i));
+			count++;
 		}
 		
-		return training;
+		return new TrainingSet(Arrays.copyOf(ri, count), Arrays.copyOf(ro, count), samples);
+	}
+	
+	/**
+	 * Transforms a single pair of raw feature rows into a training sample in place. The
+	 * input row becomes the input vector, and the output row becomes the targets.
+	 * 
+	 * @param ii raw input feature row
+	 * @param to raw output growth vector
+	 * @param submission
+	 * @param sin input column statistics
+	 * @param sout output column statistics
+	 * @param deviations maximum number of deviations
+	 * @param oi scratch space for the interpolated output vector, of length sout.size() + 1
+	 * @return false if the sample is an outlier and should be thrown out
+	 */
+	static boolean toTrainingSample(double[] ii, double[] to, Submission submission, List<Statistic> sin,
+			List<Statistic> sout, double deviations, double[] oi) {
+		setInputVector(ii, submission, sin);
+		interpolate(to, 0, sout, oi, 0);
+		
+		if(getAbsoluteMaximum(ii, 0, ii.length - 1) > deviations || 
+				getAbsoluteMaximum(oi, 0, oi.length) > deviations)
+			return false;
+		
+		// Transform the interpolated output values onto the proper interval [0.0 - 1.0].
+		// Outputs that are missing in the raw data are not trained, so their target is NaN.
+		for(int j = 0; j < to.length; j++)
+			to[j] = Double.isNaN(to[j]) ? Double.NaN : oi[j+1] / deviations + 0.5;
+		return true;
+	}
+	
+	/**
+	 * Returns a new input feature row for a raw growth vector. The first component of a
+	 * feature row is reserved for the average number of deviations from the mean, the
+	 * following components contain the growth of each input tag, and the last component
+	 * is reserved for the filer status. Both reserved components are filled in by
+	 * {@link #setInputVector}.
+	 * 
+	 * @param growth raw growth vector, with NaN for missing values
+	 * @param inputs number of input tags to copy from the growth vector
+	 * @return
+	 */
+	static double[] getFeatureRow(double[] growth, int inputs) {
+		double[] row = new double[inputs + 2];
+		System.arraycopy(growth, 0, row, 1, inputs);
+		return row;
+	}
+	
+	/**
+	 * Transforms an input feature row into the input vector of the neural networks, by
+	 * interpolating its missing values and adding the filer status of the submission.
+	 * Note that the training samples and the predictions must both be generated by this
+	 * method, or the input vector components will differ and results will be unpredictable.
+	 * 
+	 * @param row input feature row
+	 * @param submission
+	 * @param sin input column statistics
+	 */
+	static void setInputVector(double[] row, Submission submission, List<Statistic> sin) {
+		interpolate(row, 1, sin, row, 0);
+		row[row.length - 1] = submission.getFilerStatus().ordinal() + 1;
+	}
+	
+	/**
+	 * Returns true if the fraction of missing values in the specified range of the vector
+	 * is at most 1 - confidence.
+	 * 
+	 * @param vector
+	 * @param from
+	 * @param to
+	 * @param confidence
+	 * @return
+	 */
+	static boolean isConfident(double[] vector, int from, int to, double confidence) {
+		double totalNullValues = 0;
+		for(int i = from; i < to; i++)
+			if(Double.isNaN(vector[i]))
+				totalNullValues++;
+		return totalNullValues / (to - from) <= 1 - confidence;
 	}
 		
 //	public List<Submission> train(int fiscalYear, FiscalPeriod fp, double learningRate) throws Exception {
@@ -336,38 +1193,159 @@ public class Forecast implements Serializable {
 //	}
 	
 	/**
-	 * Returns summary statistics (mean, std) of the columns of the matrix. This method
-	 * ignores all values that are null.
+	 * Returns summary statistics (mean, std) of the specified columns of a row-major
+	 * matrix. This method ignores all values that are missing (NaN). If the accuracy is
+	 * positive, then the outlier fences of each column are estimated by a quantile
+	 * sketch of that capacity.
 	 * 
 	 * @param matrix
+	 * @param size number of rows
+	 * @param from first column
+	 * @param columns number of columns
+	 * @param accuracy capacity of the quantile sketch, or zero for exact quartiles
 	 * @return
 	 */
-	private List<Statistic> getColumnStatistics(List<List<Double>> matrix) {
+	static List<Statistic> getColumnStatistics(double[][] matrix, int size, int from, int columns,
+			int accuracy) {
+		return getColumnStatistics(matrix, size, from, columns, accuracy, false);
+	}
+	
+	/**
+	 * Returns summary statistics (mean, std) of the specified columns of a row-major
+	 * matrix, which can be merged with later statistics if they are mergeable.
+	 * 
+	 * @param matrix
+	 * @param size number of rows
+	 * @param from first column
+	 * @param columns number of columns
+	 * @param accuracy capacity of the quantile sketch, or zero for exact quartiles
+	 * @param mergeable whether or not the statistics retain their samples to be merged
+	 * @return
+	 */
+	static List<Statistic> getColumnStatistics(double[][] matrix, int size, int from, int columns,
+			int accuracy, boolean mergeable) {
 		// We ignore growth rates greater than a factor of 50, because these
 		// growth rates are erroneous and will likely cause problems when
 		// performing statistical calculations.
-		List<Statistic> statistics = new ArrayList<Statistic>();
-		for(int j = 0; j < matrix.get(0).size(); j++) {
-			List<Double> sample = new ArrayList<Double>();
-			for(int i = 0; i < matrix.size(); i++)
-				if(matrix.get(i).get(j) != null)
-					sample.add(matrix.get(i).get(j));
-			statistics.add(new Statistic(sample));
+		int[] counts = new int[columns];
+		double[][] samples = new double[columns][size];
+		for(int i = 0; i < size; i++) {
+			double[] row = matrix[i];
+			for(int j = 0; j < columns; j++)
+				if(!Double.isNaN(row[from + j]))
+					samples[j][counts[j]++] = row[from + j];
 		}
+		
+		for(int j = 0; j < columns; j++)
+			samples[j] = Arrays.copyOf(samples[j], counts[j]);
+		return getColumnStatistics(samples, accuracy, mergeable);
+	}
+	
+	/**
+	 * Returns summary statistics of each column of a column-major matrix, which must
+	 * not contain missing values. Every column is summarized by its own fork-join task,
+	 * so the columns are summarized in parallel. Each statistic only depends on its own
+	 * column, so the results are identical to summarizing the columns one by one.
+	 * 
+	 * @param columns samples of each column
+	 * @param accuracy capacity of the quantile sketch, or zero for exact quartiles
+	 * @param mergeable whether or not the statistics retain their samples to be merged
+	 * @return
+	 */
+	static List<Statistic> getColumnStatistics(final double[][] columns, final int accuracy,
+			final boolean mergeable) {
+		final List<ForkJoinTask<Statistic>> tasks = new ArrayList<ForkJoinTask<Statistic>>();
+		for(int j = 0; j < columns.length; j++) {
+			final double[] sample = columns[j];
+			tasks.add(new RecursiveTask<Statistic>() {
+				private static final long serialVersionUID = 1L;
+				
+				@Override
+				protected Statistic compute() {
+					return new Statistic(sample, accuracy, mergeable);
+				}
+			});
+		}
+		
+		if(ForkJoinTask.inForkJoinPool())
+			ForkJoinTask.invokeAll(tasks);
+		else
+			ForkJoinPool.commonPool().invoke(new RecursiveAction() {
+				private static final long serialVersionUID = 1L;
+				
+				@Override
+				protected void compute() {
+					invokeAll(tasks);
+				}
+			});
+		
+		List<Statistic> statistics = new ArrayList<Statistic>();
+		for(ForkJoinTask<Statistic> task : tasks)
+			statistics.add(task.join());
+		return statistics;
+	}
+	
+	/**
+	 * Merges the statistics of each column of two matrixes with the same columns.
+	 * 
+	 * @param previous
+	 * @param current
+	 * @return
+	 */
+	static List<Statistic> merge(List<Statistic> previous, List<Statistic> current) {
+		List<Statistic> statistics = new ArrayList<Statistic>();
+		for(int j = 0; j < current.size(); j++)
+			statistics.add(previous.get(j).merge(current.get(j)));
 		return statistics;
 	}
 	
 	/**
-	 * Returns a vector containing the quarter-over-quarter growth of each tag for the
-	 * particular submission. If a particular tag is not present, then the corresponding
-	 * value in the growth vector will be null.
+	 * @param statistics
+	 * @return true if there are statistics and every one of them can be merged
+	 */
+	static boolean isMergeable(List<Statistic> statistics) {
+		if(statistics == null)
+			return false;
+		for(Statistic statistic : statistics)
+			if(!statistic.isMergeable())
+				return false;
+		return true;
+	}
+	
+	/**
+	 * Writes the quarter-over-quarter growth of each tag for the particular submission
+	 * into the vector, starting at the specified offset. If a particular tag is not
+	 * present, then the corresponding value in the growth vector will be NaN. Growth
+	 * vectors are served from the feature cache when possible.
+	 * 
+	 * @param submission
+	 * @param tags
+	 * @param vector
+	 * @param offset index of the growth of the first tag
+	 * @return the vector
+	 */
+	double[] getGrowthVector(Submission submission, List<Tag> tags, double[] vector, int offset) {
+		return FEATURES.getGrowthVector(submission, tags, vector, offset);
+	}
+	
+	/**
+	 * @return the feature cache that is shared by every forecast
+	 */
+	public static FeatureCache getFeatureCache() {
+		return FEATURES;
+	}
+	
+	/**
+	 * Returns the non-null numbers of the submission for the specified tags, ordered
+	 * by tag, then by duration and then from the latest to the earliest end date. Ties
+	 * are broken by tag version, units and coregistrant, as they are in parser.sql.
 	 * 
 	 * @param submission
 	 * @param tags
 	 * @return
 	 */
 	@SuppressWarnings("unchecked")
-	private List<Double> getGrowthVector(Submission submission, List<Tag> tags) {
+	static List<Number> getNumbers(Submission submission, List<Tag> tags) {
 		Session session = HibernateConfig.FACTORY.openSession();
 		Transaction tx  = session.beginTransaction();
 		
@@ -384,9 +1362,222 @@ public class Forecast implements Serializable {
 				.addOrder(Order.desc("tag.name"))
 				.addOrder(Order.asc("duration"))
 				.addOrder(Order.desc("endDate"))
+				.addOrder(Order.asc("tag.version"))
+				.addOrder(Order.asc("units"))
+				.addOrder(Order.asc("coregistrant"))
 				.list();
-				
-		Double[] vector = new Double[tags.size()];
+		
+		tx.rollback();
+		session.close();
+		return numbers;
+	}
+	
+	/**
+	 * Returns the non-null numbers of every submission for the specified tags, which are
+	 * loaded in bulk. The numbers of each submission are ordered as they are by
+	 * getNumbers.
+	 * 
+	 * @param submissions
+	 * @param tags
+	 * @return numbers of each submission by adsh
+	 */
+	@SuppressWarnings("unchecked")
+	public static Map<String, List<Number>> getNumbers(List<Submission> submissions, List<Tag> tags) {
+		Map<String, List<Number>> numbers = new HashMap<String, List<Number>>();
+		for(Submission submission : submissions)
+			numbers.put(submission.getAdsh(), new ArrayList<Number>());
+		
+		Session session = HibernateConfig.FACTORY.openSession();
+		Transaction tx  = session.beginTransaction();
+		
+		List<String> names = getNames(tags);
+		for(int i = 0; i < submissions.size(); i += GROWTH_BATCH_SIZE) {
+			List<Number> rows = session.createCriteria(Number.class)
+					.createAlias("submission", "submission")
+					.createAlias("tag", "tag")
+					.add(Restrictions.in("submission", submissions.subList(i,
+							Math.min(submissions.size(), i + GROWTH_BATCH_SIZE))))
+					.add(Restrictions.in("tag.name", names))
+					.add(Restrictions.isNotNull("value"))
+					.addOrder(Order.desc("tag.name"))
+					.addOrder(Order.asc("duration"))
+					.addOrder(Order.desc("endDate"))
+					.addOrder(Order.asc("tag.version"))
+					.addOrder(Order.asc("units"))
+					.addOrder(Order.asc("coregistrant"))
+					.list();
+			
+			for(Number row : rows)
+				numbers.get(row.getSubmission().getAdsh()).add(row);
+		}
+		
+		tx.rollback();
+		session.close();
+		return numbers;
+	}
+	
+	/**
+	 * Computes the growth vectors of the submissions inside the database, so that only
+	 * one row per submission and tag is sent back instead of every number. The numbers
+	 * of each tag are ordered as they are by getNumbers, and the growth rate of a tag is
+	 * calculated from its first two numbers by the same formula as getGrowthVector. The
+	 * query uses window functions, which require MySQL 8.0 or later.
+	 * 
+	 * Values are converted to doubles before any arithmetic, because MySQL would divide
+	 * decimals with only a few digits of precision.
+	 * 
+	 * @param submissions
+	 * @param tags
+	 * @return growth vector of each submission by adsh
+	 */
+	@SuppressWarnings("unchecked")
+	static Map<String, double[]> getGrowthVectors(List<Submission> submissions, List<Tag> tags) {
+		List<String> names = getNames(tags);
+		
+		Map<String, double[]> vectors = new HashMap<String, double[]>();
+		for(Submission submission : submissions) {
+			double[] vector = new double[tags.size()];
+			Arrays.fill(vector, Double.NaN);
+			vectors.put(submission.getAdsh(), vector);
+		}
+		
+		Session session = HibernateConfig.FACTORY.openSession();
+		Transaction tx  = session.beginTransaction();
+		
+		List<String> adsh = new ArrayList<String>(vectors.keySet());
+		for(int i = 0; i < adsh.size(); i += GROWTH_BATCH_SIZE) {
+			List<Object[]> rows = session.createSQLQuery(GROWTH_QUERY)
+					.setParameterList("adsh", adsh.subList(i, Math.min(adsh.size(), i + GROWTH_BATCH_SIZE)))
+					.setParameterList("names", names)
+					.list();
+			
+			for(Object[] row : rows)
+				vectors.get((String) row[0])[names.indexOf((String) row[1])] = ((java.lang.Number) row[2]).doubleValue();
+		}
+		
+		tx.rollback();
+		session.close();
+		return vectors;
+	}
+	
+	/**
+	 * Reads the growth vectors of the submissions from the growth table, which is filled
+	 * when the submissions are loaded. The growth rate of each tag is the one with the
+	 * shortest duration, which is the same growth rate that getGrowthVector calculates
+	 * from the numbers.
+	 * 
+	 * @param submissions
+	 * @param tags
+	 * @return growth vector of each submission by adsh
+	 */
+	@SuppressWarnings("unchecked")
+	static Map<String, double[]> getStoredGrowthVectors(List<Submission> submissions, List<Tag> tags) {
+		Map<String, double[]> vectors = new HashMap<String, double[]>();
+		for(Submission submission : submissions) {
+			double[] vector = new double[tags.size()];
+			Arrays.fill(vector, Double.NaN);
+			vectors.put(submission.getAdsh(), vector);
+		}
+		
+		Session session = HibernateConfig.FACTORY.openSession();
+		Transaction tx  = session.beginTransaction();
+		
+		List<String> names = getNames(tags);
+		for(int i = 0; i < submissions.size(); i += GROWTH_BATCH_SIZE) {
+			List<Growth> rows = session.createCriteria(Growth.class)
+					.add(Restrictions.in("submission", submissions.subList(i,
+							Math.min(submissions.size(), i + GROWTH_BATCH_SIZE))))
+					.add(Restrictions.in("name", names))
+					.addOrder(Order.asc("duration"))
+					.list();
+			
+			for(Growth row : rows)
+				setStoredGrowth(vectors.get(row.getSubmission().getAdsh()), names, row);
+		}
+		
+		tx.rollback();
+		session.close();
+		return vectors;
+	}
+	
+	/**
+	 * Reads the growth vectors of every submission of the industry that was filed from
+	 * the start date to the end date from the growth table. Submissions without any
+	 * growth rate for the tags are left out.
+	 * 
+	 * @param sic
+	 * @param start
+	 * @param end
+	 * @param tags
+	 * @return growth vector of each submission
+	 */
+	@SuppressWarnings("unchecked")
+	static Map<Submission, double[]> getStoredGrowthVectors(int sic, Date start, Date end, List<Tag> tags) {
+		Session session = HibernateConfig.FACTORY.openSession();
+		Transaction tx  = session.beginTransaction();
+		
+		List<String> names = getNames(tags);
+		List<Growth> rows = session.createCriteria(Growth.class)
+				.add(Restrictions.eq("sic", sic))
+				.add(Restrictions.ge("filingDate", start))
+				.add(Restrictions.le("filingDate", end))
+				.add(Restrictions.in("name", names))
+				.addOrder(Order.asc("duration"))
+				.list();
+		
+		tx.rollback();
+		session.close();
+		
+		Map<Submission, double[]> vectors = new HashMap<Submission, double[]>();
+		for(Growth row : rows) {
+			double[] vector = vectors.get(row.getSubmission());
+			if(vector == null) {
+				vector = new double[tags.size()];
+				Arrays.fill(vector, Double.NaN);
+				vectors.put(row.getSubmission(), vector);
+			}
+			setStoredGrowth(vector, names, row);
+		}
+		return vectors;
+	}
+	
+	/**
+	 * Writes a stored growth rate into the growth vector, unless the vector already holds
+	 * a growth rate of the same tag with a shorter duration.
+	 * 
+	 * @param vector
+	 * @param names
+	 * @param row
+	 */
+	private static void setStoredGrowth(double[] vector, List<String> names, Growth row) {
+		int j = names.indexOf(row.getName());
+		if(Double.isNaN(vector[j]))
+			vector[j] = row.getGrowth();
+	}
+	
+	private static List<String> getNames(List<Tag> tags) {
+		List<String> names = new ArrayList<String>();
+		for(Tag tag : tags)
+			names.add(tag.getName());
+		return names;
+	}
+	
+	/**
+	 * Computes the growth vector of a submission from its numbers, which must be ordered
+	 * as they are by getNumbers.
+	 * 
+	 * @param numbers
+	 * @param tags
+	 * @param vector
+	 * @param offset index of the growth of the first tag
+	 * @return the vector
+	 */
+	static double[] getGrowthVector(List<Number> numbers, List<Tag> tags, double[] vector, int offset) {
+		List<String> names = new ArrayList<String>();
+		for(Tag tag : tags)
+			names.add(tag.getName());
+		
+		Arrays.fill(vector, offset, offset + tags.size(), Double.NaN);
 		for(int i = 0; i < numbers.size() - 1; i++) {
 			String t1 = numbers.get(i+0).getTag().getName();
 			String t2 = numbers.get(i+1).getTag().getName();
@@ -407,42 +1598,44 @@ public class Forecast implements Serializable {
 			double norm   = (quarters <= 1) ? growth : 
 							Math.signum(growth) * Math.pow(Math.abs(growth), 1.0 / quarters);
 			
-			if(names.contains(t1) && vector[names.indexOf(t1)] == null)
-				vector[names.indexOf(t1)] = norm;
+			if(names.contains(t1) && Double.isNaN(vector[offset + names.indexOf(t1)]))
+				vector[offset + names.indexOf(t1)] = norm;
 		}
 		
-		tx.rollback();
-		session.close();
-		return Arrays.asList(vector);
+		return vector;
 	}
 	
-	private double getAbsoluteMaximum(List<Double> values) {
+	static double getAbsoluteMaximum(double[] values, int from, int to) {
 		double max = 0.0;
-		for(Double value : values)
-			if(value != null && Math.abs(value) > max)
-				max = value;
+		for(int i = from; i < to; i++)
+			if(!Double.isNaN(values[i]) && Math.abs(values[i]) > max)
+				max = values[i];
 		return max;
 	}
 	
 	/**
-	 * Utilizes the column statistics to interpolate null values in the growth vector. First,
-	 * it calculates the average number of deviations from the mean. Then, it uses the column
-	 * statistics to determine what the raw growth should have been. The average number of
-	 * deviations is included as the first component of the returned vector.
+	 * Utilizes the column statistics to interpolate missing values in the growth vector.
+	 * First, it calculates the average number of deviations from the mean. Then, it uses
+	 * the column statistics to determine what the raw growth should have been. The
+	 * average number of deviations is written to the destination, followed by the
+	 * interpolated vector. The source and destination may be the same array, as long as
+	 * the destination offset precedes the source offset by one.
 	 * 
-	 * @param vector
+	 * @param vector growth vector, with NaN for missing values
+	 * @param from index of the growth of the first tag
 	 * @param stats
-	 * @return
+	 * @param dest
+	 * @param to index of the average number of deviations in the destination
 	 */
-	private List<Double> getInterpolatedVector(List<Double> vector, List<Statistic> stats) {
+	static void interpolate(double[] vector, int from, List<Statistic> stats, double[] dest, int to) {
 		// Calculate the average number of deviations from the mean. This will 
 		// enable us to interpolate null values based on the column statistics
 		// for the tag.
-		Double avg = 0.0;
-		for(int i = 0; i < vector.size(); i++) {
-			Double value = (vector.get(i) == null) ? stats.get(i).getMean() : vector.get(i);
-			Double norm  = stats.get(i).normalize(value);
-			avg += (norm.isNaN()) ? 0.0 : norm;
+		double avg = 0.0;
+		for(int i = 0; i < stats.size(); i++) {
+			double value = Double.isNaN(vector[from + i]) ? stats.get(i).getMean() : vector[from + i];
+			double norm  = stats.get(i).normalize(value);
+			avg += Double.isNaN(norm) ? 0.0 : norm;
 		}
 		avg /= stats.size();
 		
@@ -451,17 +1644,11 @@ public class Forecast implements Serializable {
 		// to other companies in the industry for this particular fiscal period. We also
 		// add the filer status to the input vector. Larger companies have lower filer periods.
 		// The size of a company has a huge effect on growth (smaller usually is faster).
-		List<Double> interpolated = new ArrayList<Double>();
-		interpolated.add(avg);
-		
+		dest[to] = avg;
 		for(int i = 0; i < stats.size(); i++) {
-			if(vector.get(i) == null)
-				interpolated.add(stats.get(i).raw(avg));
-			else
-				interpolated.add(vector.get(i));
+			double value = vector[from + i];
+			dest[to + 1 + i] = Double.isNaN(value) ? stats.get(i).raw(avg) : value;
 		}
-		
-		return interpolated;
 	}
 
 	/**
@@ -499,4 +1686,37 @@ public class Forecast implements Serializable {
 		
 		return tags;
 	}
+	
+	/**
+	 * A consecutive pair of submissions of the same registrant, together with the raw
+	 * input vector of the first submission and the raw output vector of the second.
+	 */
+	static class Pair {
+		
+		private final Submission _submission, _next;
+		private final double[] _inputs, _outputs;
+		
+		private Pair(Submission submission, Submission next, double[] inputs, double[] outputs) {
+			_submission = submission;
+			_next = next;
+			_inputs = inputs;
+			_outputs = outputs;
+		}
+		
+		public Submission getSubmission() {
+			return _submission;
+		}
+		
+		public Submission getNext() {
+			return _next;
+		}
+		
+		public double[] getInputs() {
+			return _inputs;
+		}
+		
+		public double[] getOutputs() {
+			return _outputs;
+		}
+	}
 }
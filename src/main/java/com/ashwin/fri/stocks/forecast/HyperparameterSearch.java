@@ -0,0 +1,486 @@
+package com.ashwin.fri.stocks.forecast;
+
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import com.ashwin.fri.stocks.hibernate.HibernateConfig;
+import com.ashwin.fri.stocks.hibernate.Submission;
+import com.ashwin.fri.stocks.hibernate.Tag;
+import com.ashwin.fri.stocks.neural.NeuralNetwork;
+
+/**
+ * The hyperparameter search looks for the number of input tags, the sizes of
+ * the hidden layers, the maximum number of deviations and the learning rate
+ * that produce the lowest validation error for the forecasts of an industry.
+ * The raw growth vectors of the most common tags are loaded from the database
+ * once, and are then shared read-only by all trials. Each trial only uses the
+ * first columns of the shared matrix, so trials with fewer input tags never
+ * query the database again. Trials run in parallel across all cores.
+ * 
+ * Trials that are clearly losing are pruned using the median stopping rule.
+ * After a few warm up epochs, a trial is stopped if its best validation error
+ * is worse than the median best validation error that the other trials had
+ * reached after the same number of epochs.
+ * 
+ * Every trial is scored on the same held-out rows, which are the most recently
+ * filed pairs of the industry. The held-out rows are never trained on, and are
+ * neither filtered by the confidence of a trial nor thrown out as outliers by its
+ * maximum number of deviations, so a trial can't lower its error by discarding the
+ * samples that are hard to predict. The validation error is the error of the
+ * predicted growth against the raw growth, so trials with different numbers of
+ * input tags and maximum numbers of deviations can be compared with each other.
+ * 
+ * Usage: HyperparameterSearch sic...
+ * 
+ * @author ashwin
+ */
+public class HyperparameterSearch {
+	
+	private static final int MAX_EPOCHS = 50;
+	private static final int PATIENCE = 3;
+	private static final double VALIDATION = 0.2;
+	
+	/** Number of epochs that every trial completes before it can be pruned. */
+	private static final int WARMUP_EPOCHS = 3;
+	
+	/** Minimum number of trials to compare against before a trial can be pruned. */
+	private static final int MIN_TRIALS = 4;
+	
+	private int _sic;
+	private double _confidence;
+	private List<Tag> _inputs, _outputs;
+	
+	private double[][] _ri, _ro;
+	private List<Submission> _rs;
+	private int _split;
+	
+	private Map<Integer, List<Double>> _history;
+	
+	/**
+	 * Loads the raw growth vectors of every consecutive pair of submissions in the
+	 * industry from the start date to the end date, and holds out the most recently
+	 * filed pairs to score every trial on. The input vectors contain the
+	 * specified number of most common tags, which bounds the number of input tags
+	 * that any trial may use.
+	 * 
+	 * @param sic
+	 * @param inputs maximum number of input tags
+	 * @param start
+	 * @param end
+	 * @param confidence
+	 * @param outputs names of the output tags
+	 * @throws InterruptedException
+	 */
+	public HyperparameterSearch(int sic, int inputs, Date start, Date end, double confidence, String... outputs)
+			throws InterruptedException {
+		Forecast probe = new Forecast(sic, inputs, outputs);
+		_sic = sic;
+		_confidence = confidence;
+		_inputs = probe.getInputTags();
+		_outputs = probe.getOutputTags();
+		
+		// Registrants are independent of each other, so their pairs are loaded in parallel.
+		List<Forecast.Pair> pairs = probe.getPairs(probe.getSubmissions(start, end), HibernateConfig.POOL_SIZE);
+		
+		// The pairs whose submissions were filed last are held out for validation, and
+		// are moved to the end of the rows. The other pairs keep their relative order.
+		long[] dates = new long[pairs.size()];
+		for(int i = 0; i < dates.length; i++)
+			dates[i] = pairs.get(i).getSubmission().getFilingDate().getTime();
+		Arrays.sort(dates);
+		long cutoff = (dates.length == 0) ? Long.MAX_VALUE :
+				dates[Math.min(dates.length - 1, (int) ((1 - VALIDATION) * dates.length))];
+		
+		List<Forecast.Pair> ordered = new ArrayList<Forecast.Pair>();
+		List<Forecast.Pair> holdout = new ArrayList<Forecast.Pair>();
+		for(Forecast.Pair pair : pairs)
+			(pair.getSubmission().getFilingDate().getTime() < cutoff ? ordered : holdout).add(pair);
+		_split = ordered.size();
+		ordered.addAll(holdout);
+		
+		List<Submission> rs = new ArrayList<Submission>();
+		_ri = new double[ordered.size()][];
+		_ro = new double[ordered.size()][];
+		for(int i = 0; i < ordered.size(); i++) {
+			_ri[i] = ordered.get(i).getInputs();
+			_ro[i] = ordered.get(i).getOutputs();
+			rs.add(ordered.get(i).getSubmission());
+		}
+		_rs = Collections.unmodifiableList(rs);
+	}
+	
+	public int getSic() {
+		return _sic;
+	}
+	
+	public List<Tag> getInputTags() {
+		return _inputs;
+	}
+	
+	public List<Tag> getOutputTags() {
+		return _outputs;
+	}
+	
+	/**
+	 * Runs a trial for every combination of the specified parameters.
+	 * 
+	 * @param inputs numbers of input tags
+	 * @param hidden sizes of the hidden layers
+	 * @param deviations maximum numbers of deviations
+	 * @param rates learning rates
+	 * @return trials ranked from best to worst
+	 * @throws Exception
+	 */
+	public List<Trial> grid(int[] inputs, int[][] hidden, double[] deviations, double[] rates) throws Exception {
+		List<Trial> trials = new ArrayList<Trial>();
+		for(int n : inputs)
+			for(int[] h : hidden)
+				for(double d : deviations)
+					for(double r : rates)
+						trials.add(new Trial(n, h, d, r));
+		return run(trials);
+	}
+	
+	/**
+	 * Runs the specified number of trials with randomly chosen parameters. The number
+	 * of input tags and the sizes of the hidden layers are chosen from the specified
+	 * values. The maximum number of deviations is chosen uniformly and the learning
+	 * rate is chosen log-uniformly between the smallest and the largest specified values.
+	 * 
+	 * @param count number of trials
+	 * @param inputs numbers of input tags
+	 * @param hidden sizes of the hidden layers
+	 * @param deviations range of maximum numbers of deviations
+	 * @param rates range of learning rates
+	 * @param seed
+	 * @return trials ranked from best to worst
+	 * @throws Exception
+	 */
+	public List<Trial> random(int count, int[] inputs, int[][] hidden, double[] deviations,
+			double[] rates, long seed) throws Exception {
+		double minDeviations = min(deviations), maxDeviations = max(deviations);
+		double minRate = Math.log(min(rates)), maxRate = Math.log(max(rates));
+		
+		Random random = new Random(seed);
+		List<Trial> trials = new ArrayList<Trial>();
+		for(int i = 0; i < count; i++)
+			trials.add(new Trial(
+					inputs[random.nextInt(inputs.length)],
+					hidden[random.nextInt(hidden.length)],
+					minDeviations + random.nextDouble() * (maxDeviations - minDeviations),
+					Math.exp(minRate + random.nextDouble() * (maxRate - minRate))));
+		return run(trials);
+	}
+	
+	/**
+	 * Runs the trials in parallel and ranks them by their validation error. Trials
+	 * that were pruned are ranked below all trials that completed.
+	 * 
+	 * @param trials
+	 * @return trials ranked from best to worst
+	 * @throws Exception
+	 */
+	private List<Trial> run(List<Trial> trials) throws Exception {
+		_history = new HashMap<Integer, List<Double>>();
+		
+		ExecutorService executor = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
+		try {
+			List<Future<Trial>> futures = new ArrayList<Future<Trial>>();
+			for(final Trial trial : trials)
+				futures.add(executor.submit(new Callable<Trial>() {
+					@Override
+					public Trial call() throws Exception {
+						return run(trial);
+					}
+				}));
+			
+			for(Future<Trial> future : futures)
+				future.get();
+		} finally {
+			executor.shutdown();
+		}
+		
+		List<Trial> ranked = new ArrayList<Trial>(trials);
+		Collections.sort(ranked);
+		return ranked;
+	}
+	
+	/**
+	 * Trains a set of networks with the parameters of the trial on the shared raw
+	 * growth vectors. The selected rows are copied into feature rows of the trial,
+	 * so that the shared vectors are never modified.
+	 * 
+	 * @param trial
+	 * @return trial
+	 */
+	private Trial run(Trial trial) {
+		long start = System.currentTimeMillis();
+		int inputs = Math.min(trial.getInputs(), _inputs.size());
+		
+		// Step 1: Select the training rows of the matrix that have sufficiently few null
+		// inputs among the input tags that this trial uses.
+		int size = 0;
+		double[][] ri = new double[_split][];
+		double[][] ro = new double[_split][];
+		List<Submission> rs = new ArrayList<Submission>();
+		for(int i = 0; i < _split; i++) {
+			if(Forecast.isConfident(_ri[i], 0, inputs, _confidence)) {
+				ri[size] = Forecast.getFeatureRow(_ri[i], inputs);
+				ro[size] = _ro[i].clone();
+				rs.add(_rs.get(i));
+				size++;
+			}
+		}
+		
+		if(size == 0) {
+			trial.complete(Double.NaN, 0, false, System.currentTimeMillis() - start);
+			return trial;
+		}
+		
+		// Step 2: Generate the training samples exactly as the forecast would, and the
+		// input vectors of every held-out row with the statistics of the training rows.
+		List<Statistic> sin  = Forecast.getColumnStatistics(ri, size, 1, inputs, 0);
+		List<Statistic> sout = Forecast.getColumnStatistics(ro, size, 0, _outputs.size(), 0);
+		TrainingSet set = Forecast.getTrainingSet(ri, ro, rs, size, sin, sout, trial.getDeviations());
+		
+		double[][] vi = new double[_ri.length - _split][];
+		for(int i = 0; i < vi.length; i++) {
+			vi[i] = Forecast.getFeatureRow(_ri[_split + i], inputs);
+			Forecast.setInputVector(vi[i], _rs.get(_split + i), sin);
+		}
+		
+		int[] nodes = new int[trial.getHidden().length + 2];
+		nodes[0] = inputs + 2;
+		System.arraycopy(trial.getHidden(), 0, nodes, 1, trial.getHidden().length);
+		nodes[nodes.length - 1] = 1;
+		
+		List<NeuralNetwork> networks = new ArrayList<NeuralNetwork>();
+		for(int j = 0; j < _outputs.size(); j++)
+			networks.add(new NeuralNetwork(nodes));
+		
+		// Step 3: Train the networks until the validation error stops improving, or
+		// until the trial is pruned.
+		Random random = new Random();
+		double best = Double.MAX_VALUE;
+		int epoch = 0, stale = 0;
+		boolean pruned = false;
+		while(epoch < MAX_EPOCHS && stale < PATIENCE && !pruned) {
+			set.shuffle(0, set.size(), random);
+			for(int i = 0; i < set.size(); i++) {
+				double[] targets = set.getTargets()[i];
+				for(int j = 0; j < targets.length; j++)
+					if(!Double.isNaN(targets[j]))
+						networks.get(j).backpropagate(set.getInputs()[i], new double[] { targets[j] },
+								trial.getRate());
+			}
+			epoch++;
+			
+			double error = getValidationError(vi, networks, sout, trial.getDeviations());
+			if(error < best) {
+				best = error;
+				stale = 0;
+			} else {
+				stale++;
+			}
+			
+			pruned = prune(epoch, best);
+		}
+		
+		trial.complete(best, epoch, pruned, System.currentTimeMillis() - start);
+		return trial;
+	}
+	
+	/**
+	 * Returns the root mean squared error of the growth that the networks predict for
+	 * the held-out rows, against their raw growth. The outputs of the networks are
+	 * recovered exactly as the forecast recovers them.
+	 * 
+	 * @param vi input vectors of the held-out rows
+	 * @param networks
+	 * @param sout output column statistics
+	 * @param deviations maximum number of deviations
+	 * @return validation error
+	 */
+	private double getValidationError(double[][] vi, List<NeuralNetwork> networks, List<Statistic> sout,
+			double deviations) {
+		double error = 0.0;
+		int count = 0;
+		for(int i = 0; i < vi.length; i++) {
+			double[] targets = _ro[_split + i];
+			for(int j = 0; j < targets.length; j++) {
+				if(Double.isNaN(targets[j]))
+					continue;
+				
+				double potential = networks.get(j).execute(vi[i])[0];
+				double diff = sout.get(j).raw(deviations * (potential - 0.5)) - targets[j];
+				error += diff * diff;
+				count++;
+			}
+		}
+		return (count == 0) ? Double.MAX_VALUE : Math.sqrt(error / count);
+	}
+	
+	/**
+	 * Records the best validation error of a trial after the specified number of
+	 * epochs, and returns whether or not the trial should be pruned.
+	 * 
+	 * @param epoch
+	 * @param best best validation error of the trial so far
+	 * @return true if the trial should be stopped, false otherwise
+	 */
+	private synchronized boolean prune(int epoch, double best) {
+		List<Double> history = _history.get(epoch);
+		if(history == null) {
+			history = new ArrayList<Double>();
+			_history.put(epoch, history);
+		}
+		
+		boolean prune = false;
+		if(epoch >= WARMUP_EPOCHS && history.size() >= MIN_TRIALS) {
+			double[] errors = new double[history.size()];
+			for(int i = 0; i < errors.length; i++)
+				errors[i] = history.get(i);
+			Arrays.sort(errors);
+			prune = best > errors[errors.length / 2];
+		}
+		
+		history.add(best);
+		return prune;
+	}
+	
+	/**
+	 * Prints the ranked trials as a table.
+	 * 
+	 * @param trials
+	 * @param out
+	 */
+	public void print(List<Trial> trials, PrintStream out) {
+		out.println("SIC " + _sic + " (" + _ri.length + " samples)");
+		out.println(String.format("%5s %7s %-12s %10s %8s %7s %12s %9s %8s",
+				"rank", "inputs", "hidden", "deviations", "rate", "epochs", "error", "time (s)", "status"));
+		for(int i = 0; i < trials.size(); i++) {
+			Trial trial = trials.get(i);
+			out.println(String.format("%5d %7d %-12s %10.2f %8.4f %7d %12.6f %9.1f %8s",
+					i + 1, trial.getInputs(), Arrays.toString(trial.getHidden()), trial.getDeviations(),
+					trial.getRate(), trial.getEpochs(), trial.getError(), trial.getTime() / 1000.0,
+					trial.isPruned() ? "pruned" : "done"));
+		}
+	}
+	
+	private static double min(double[] values) {
+		double min = Double.MAX_VALUE;
+		for(double value : values)
+			min = Math.min(min, value);
+		return min;
+	}
+	
+	private static double max(double[] values) {
+		double max = -Double.MAX_VALUE;
+		for(double value : values)
+			max = Math.max(max, value);
+		return max;
+	}
+	
+	public static void main(String[] args) throws Exception {
+		int[] inputs = { 5, 10, 15, 20, 30 };
+		int[][] hidden = { { 10 }, { 10, 3 }, { 20, 5 }, { 30, 10, 3 } };
+		double[] deviations = { 1.8, 2.2, 2.6, 3.0 };
+		double[] rates = { 0.3, 1.0, 1.2, 3.0 };
+		
+		for(String arg : args) {
+			HyperparameterSearch search = new HyperparameterSearch(Integer.parseInt(arg), 30,
+					new Date(0), new Date(System.currentTimeMillis()), 0.90, "Revenues");
+			search.print(search.grid(inputs, hidden, deviations, rates), System.out);
+			System.out.println();
+		}
+	}
+	
+	/**
+	 * A trial is a single combination of parameters and the result of training
+	 * a forecast with them. Trials are ordered from best to worst.
+	 */
+	public static class Trial implements Comparable<Trial> {
+		
+		private int _inputs;
+		private int[] _hidden;
+		private double _deviations, _rate;
+		
+		private double _error;
+		private int _epochs;
+		private boolean _pruned;
+		private long _time;
+		
+		public Trial(int inputs, int[] hidden, double deviations, double rate) {
+			_inputs = inputs;
+			_hidden = hidden;
+			_deviations = deviations;
+			_rate = rate;
+			_error = Double.NaN;
+		}
+		
+		private void complete(double error, int epochs, boolean pruned, long time) {
+			_error = error;
+			_epochs = epochs;
+			_pruned = pruned;
+			_time = time;
+		}
+		
+		public int getInputs() {
+			return _inputs;
+		}
+		
+		public int[] getHidden() {
+			return _hidden;
+		}
+		
+		public double getDeviations() {
+			return _deviations;
+		}
+		
+		public double getRate() {
+			return _rate;
+		}
+		
+		/**
+		 * @return best validation error in units of growth
+		 */
+		public double getError() {
+			return _error;
+		}
+		
+		public int getEpochs() {
+			return _epochs;
+		}
+		
+		public boolean isPruned() {
+			return _pruned;
+		}
+		
+		/**
+		 * @return training time in milliseconds
+		 */
+		public long getTime() {
+			return _time;
+		}
+		
+		@Override
+		public int compareTo(Trial oth) {
+			if(_pruned != oth._pruned)
+				return _pruned ? 1 : -1;
+			if(Double.isNaN(_error) || Double.isNaN(oth._error))
+				return Double.isNaN(_error) ? (Double.isNaN(oth._error) ? 0 : 1) : -1;
+			return Double.compare(_error, oth._error);
+		}
+	}
+}
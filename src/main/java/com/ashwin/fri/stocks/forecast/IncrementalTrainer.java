@@ -0,0 +1,311 @@
+package com.ashwin.fri.stocks.forecast;
+
+import java.io.Closeable;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.hibernate.Session;
+import org.hibernate.Transaction;
+import org.hibernate.criterion.Order;
+import org.hibernate.criterion.Restrictions;
+
+import com.ashwin.fri.stocks.hibernate.HibernateConfig;
+import com.ashwin.fri.stocks.hibernate.Registrant;
+import com.ashwin.fri.stocks.hibernate.Submission;
+
+/**
+ * The incremental trainer keeps a set of trained forecasts current as new filings
+ * are ingested. It periodically polls the database for submissions that were
+ * accepted after the watermark, pairs each of them with the previous filing of
+ * the same registrant, and updates the forecast of the registrant's industry with
+ * only those new samples. Forecasts of other industries are left alone.
+ * 
+ * The watermark is the latest acceptance date that has been processed, and should
+ * be persisted by the caller between runs. If updating a forecast fails, then its
+ * new submissions are kept and retried on the next poll, so no filing is lost.
+ * 
+ * Forecasts are updated in place on the polling thread, so they must not be used
+ * by other threads while the trainer is running. Listeners are notified on the
+ * polling thread after a forecast has been updated, so they may use it.
+ * 
+ * @author ashwin
+ */
+public class IncrementalTrainer implements Closeable {
+	
+	private final Map<Integer, Forecast> _forecasts;
+	private final double _confidence, _learningRate;
+	
+	private Date _watermark;
+	private Set<String> _seen;
+	private Map<Integer, List<Submission>> _retries;
+	private List<Listener> _listeners;
+	private ScheduledExecutorService _executor;
+	
+	/**
+	 * Creates a trainer for the specified forecasts, which must already be trained.
+	 * 
+	 * @param forecasts trained forecasts by industry
+	 * @param watermark acceptance date of the latest submission the forecasts were trained on
+	 * @param confidence
+	 * @param learningRate
+	 */
+	public IncrementalTrainer(Map<Integer, Forecast> forecasts, Date watermark, double confidence,
+			double learningRate) {
+		_forecasts = forecasts;
+		_watermark = watermark;
+		_confidence = confidence;
+		_learningRate = learningRate;
+		_seen = new HashSet<String>();
+		_retries = new TreeMap<Integer, List<Submission>>();
+		_listeners = new ArrayList<Listener>();
+	}
+	
+	/**
+	 * Adds a listener that is notified of the new submissions of every industry whose
+	 * forecast has been updated.
+	 * 
+	 * @param listener
+	 */
+	public synchronized void addListener(Listener listener) {
+		_listeners.add(listener);
+	}
+	
+	/**
+	 * @return acceptance date of the latest submission that has been processed
+	 */
+	public synchronized Date getWatermark() {
+		return _watermark;
+	}
+	
+	/**
+	 * Polls for new submissions every interval on a background thread, until the
+	 * trainer is closed. Every poll is reported to the log.
+	 * 
+	 * @param interval time between the end of a poll and the start of the next, in milliseconds
+	 * @param log
+	 */
+	public synchronized void start(long interval, final PrintStream log) {
+		_executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable runnable) {
+				Thread thread = new Thread(runnable, "incremental-trainer");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		
+		_executor.scheduleWithFixedDelay(new Runnable() {
+			@Override
+			public void run() {
+				// A failed poll must not cancel the schedule, so that the next poll can
+				// pick up where this one left off.
+				try {
+					Map<Integer, Integer> updated = poll();
+					for(Map.Entry<Integer, Integer> entry : updated.entrySet())
+						log.println("SIC " + entry.getKey() + ": trained on " + entry.getValue() + " new submissions");
+				} catch(Exception e) {
+					log.println("Incremental training failed: " + e);
+				}
+			}
+		}, 0, interval, TimeUnit.MILLISECONDS);
+	}
+	
+	@Override
+	public synchronized void close() {
+		if(_executor != null)
+			_executor.shutdownNow();
+	}
+	
+	/**
+	 * Finds the submissions that were accepted since the last poll, and updates the
+	 * forecasts of their industries with them.
+	 * 
+	 * @return number of submissions each forecast was trained on
+	 * @throws Exception if any forecast could not be updated, after the others were, or if a
+	 * listener failed
+	 */
+	public synchronized Map<Integer, Integer> poll() throws Exception {
+		// Step 1: Find the new submissions of every industry, together with the ones
+		// that failed to train during the last poll.
+		Map<Integer, List<Submission>> pending = _retries;
+		_retries = new TreeMap<Integer, List<Submission>>();
+		for(Submission submission : getNewSubmissions()) {
+			Integer sic = submission.getRegistrant().getSic();
+			if(!pending.containsKey(sic))
+				pending.put(sic, new ArrayList<Submission>());
+			pending.get(sic).add(submission);
+		}
+		
+		// Step 2: Pair the new submissions with the previous filing of each registrant,
+		// and update each forecast with only those samples.
+		Map<Integer, Integer> updated = new TreeMap<Integer, Integer>();
+		Exception failure = null;
+		for(Map.Entry<Integer, List<Submission>> entry : pending.entrySet()) {
+			try {
+				List<Submission> submissions = getPairs(entry.getValue());
+				Set<Submission> trained = _forecasts.get(entry.getKey()).update(submissions,
+						_confidence, _learningRate);
+				updated.put(entry.getKey(), trained.size());
+			} catch(Exception e) {
+				_retries.put(entry.getKey(), entry.getValue());
+				failure = e;
+			}
+		}
+		
+		// Step 3: Notify the listeners of every industry that was updated. A listener that
+		// fails doesn't undo the update, so the industry is not retried.
+		Set<Integer> unnotified = new TreeSet<Integer>();
+		Exception notification = null;
+		for(Integer sic : updated.keySet()) {
+			for(Listener listener : _listeners) {
+				try {
+					listener.updated(sic, pending.get(sic));
+				} catch(Exception e) {
+					unnotified.add(sic);
+					notification = e;
+				}
+			}
+		}
+		
+		// The other industries have already been updated, so only the failed ones are
+		// retried by the next poll.
+		if(failure != null) {
+			Exception exception = new Exception("Industries " + _retries.keySet() + " will be retried", failure);
+			if(notification != null)
+				exception.addSuppressed(notification);
+			throw exception;
+		}
+		if(notification != null)
+			throw new Exception("Listeners of industries " + unnotified + " failed", notification);
+		
+		return updated;
+	}
+	
+	/**
+	 * Returns the detailed 10-K and 10-Q submissions of the forecast industries that
+	 * were accepted since the watermark, and advances the watermark past them. The
+	 * submissions that were accepted at the watermark itself are remembered, so that
+	 * submissions accepted at the same time are neither skipped nor trained twice.
+	 * 
+	 * @return
+	 */
+	@SuppressWarnings("unchecked")
+	private List<Submission> getNewSubmissions() {
+		Session session = HibernateConfig.FACTORY.openSession();
+		Transaction tx  = session.beginTransaction();
+		
+		List<Submission> submissions = session.createCriteria(Submission.class)
+				.createAlias("registrant", "registrant")
+				.add(Restrictions.in("registrant.sic", _forecasts.keySet()))
+				.add(Restrictions.eq("detailed", true))
+				.add(Restrictions.or(
+						Restrictions.eq("form", "10-K"),
+						Restrictions.eq("form", "10-K/A"),
+						Restrictions.eq("form", "10-Q"),
+						Restrictions.eq("form", "10-Q/A")))
+				.add(Restrictions.ge("acceptedDate", _watermark))
+				.addOrder(Order.asc("acceptedDate"))
+				.list();
+		
+		tx.rollback();
+		session.close();
+		
+		List<Submission> fresh = new ArrayList<Submission>();
+		for(Submission submission : submissions) {
+			if(_seen.contains(submission.getAdsh()))
+				continue;
+			
+			if(submission.getAcceptedDate().after(_watermark)) {
+				_watermark = submission.getAcceptedDate();
+				_seen.clear();
+			}
+			_seen.add(submission.getAdsh());
+			fresh.add(submission);
+			
+			// An amendment supersedes the figures of the filing it amends.
+			Forecast.getFeatureCache().invalidate(submission);
+		}
+		return fresh;
+	}
+	
+	/**
+	 * Orders the new submissions by registrant and filing date, and puts the previous
+	 * filing of each registrant in front of its new submissions. Consecutive pairs of
+	 * the returned list are exactly the new samples.
+	 * 
+	 * @param submissions new submissions of a single industry
+	 * @return
+	 */
+	private List<Submission> getPairs(List<Submission> submissions) {
+		Map<Registrant, List<Submission>> registrants = new LinkedHashMap<Registrant, List<Submission>>();
+		for(Submission submission : submissions) {
+			if(!registrants.containsKey(submission.getRegistrant()))
+				registrants.put(submission.getRegistrant(), new ArrayList<Submission>());
+			registrants.get(submission.getRegistrant()).add(submission);
+		}
+		
+		Session session = HibernateConfig.FACTORY.openSession();
+		Transaction tx  = session.beginTransaction();
+		
+		List<Submission> pairs = new ArrayList<Submission>();
+		for(Map.Entry<Registrant, List<Submission>> entry : registrants.entrySet()) {
+			List<Submission> filings = entry.getValue();
+			Collections.sort(filings, new Comparator<Submission>() {
+				@Override
+				public int compare(Submission a, Submission b) {
+					return a.getFilingDate().compareTo(b.getFilingDate());
+				}
+			});
+			
+			Submission previous = (Submission) session.createCriteria(Submission.class)
+					.add(Restrictions.eq("registrant", entry.getKey()))
+					.add(Restrictions.eq("detailed", true))
+					.add(Restrictions.or(
+							Restrictions.eq("form", "10-K"),
+							Restrictions.eq("form", "10-K/A"),
+							Restrictions.eq("form", "10-Q"),
+							Restrictions.eq("form", "10-Q/A")))
+					.add(Restrictions.lt("filingDate", filings.get(0).getFilingDate()))
+					.addOrder(Order.desc("filingDate"))
+					.setMaxResults(1)
+					.uniqueResult();
+			
+			if(previous != null)
+				pairs.add(previous);
+			pairs.addAll(filings);
+		}
+		
+		tx.rollback();
+		session.close();
+		return pairs;
+	}
+	
+	/**
+	 * A listener of the updates of the incremental trainer.
+	 */
+	public interface Listener {
+		
+		/**
+		 * Called after the forecast of the industry has been updated with its new
+		 * submissions.
+		 * 
+		 * @param sic
+		 * @param submissions new submissions of the industry
+		 */
+		void updated(int sic, List<Submission> submissions);
+	}
+}
@@ -0,0 +1,111 @@
+package com.ashwin.fri.stocks.forecast;
+
+import java.io.Serializable;
+
+/**
+ * Accumulates the first four central moments of a sample in a single pass,
+ * without storing the sample. Every value updates the mean and the sums of
+ * the second, third and fourth powers of the deviations from the mean using
+ * the numerically stable updates of Welford and Terriberry.
+ * 
+ * @author ashwin
+ */
+public class Moments implements Serializable {
+	
+	private static final long serialVersionUID = 7381640582375622943L;
+	
+	private long _n;
+	private double _mean, _m2, _m3, _m4;
+	
+	public Moments() {
+	}
+	
+	/**
+	 * Creates a copy of the specified moments.
+	 * 
+	 * @param moments
+	 */
+	public Moments(Moments moments) {
+		_n = moments._n;
+		_mean = moments._mean;
+		_m2 = moments._m2;
+		_m3 = moments._m3;
+		_m4 = moments._m4;
+	}
+	
+	/**
+	 * Adds a value to the sample.
+	 * 
+	 * @param value
+	 */
+	public void add(double value) {
+		long n1 = _n++;
+		double delta  = value - _mean;
+		double deltaN = delta / _n;
+		double deltaN2 = deltaN * deltaN;
+		double term = delta * deltaN * n1;
+		
+		_mean += deltaN;
+		_m4 += term * deltaN2 * (_n * _n - 3 * _n + 3) + 6 * deltaN2 * _m2 - 4 * deltaN * _m3;
+		_m3 += term * deltaN * (_n - 2) - 3 * deltaN * _m2;
+		_m2 += term;
+	}
+	
+	/**
+	 * Merges the moments of another sample into these moments, such that they are
+	 * the moments of the union of both samples. Uses the pairwise update formulas of
+	 * Chan and Pebay, so the result is the same as if every value of the other sample
+	 * had been added, up to rounding.
+	 * 
+	 * @param moments
+	 */
+	public void merge(Moments moments) {
+		if(moments._n == 0)
+			return;
+		
+		double na = _n, nb = moments._n, n = na + nb;
+		double delta = moments._mean - _mean;
+		double delta2 = delta * delta;
+		
+		double m2 = _m2 + moments._m2 + delta2 * na * nb / n;
+		double m3 = _m3 + moments._m3 + delta2 * delta * na * nb * (na - nb) / (n * n)
+				+ 3 * delta * (na * moments._m2 - nb * _m2) / n;
+		double m4 = _m4 + moments._m4 + delta2 * delta2 * na * nb * (na * na - na * nb + nb * nb) / (n * n * n)
+				+ 6 * delta2 * (na * na * moments._m2 + nb * nb * _m2) / (n * n)
+				+ 4 * delta * (na * moments._m3 - nb * _m3) / n;
+		
+		_n += moments._n;
+		_mean += delta * nb / n;
+		_m2 = m2;
+		_m3 = m3;
+		_m4 = m4;
+	}
+	
+	/**
+	 * @return number of values in the sample
+	 */
+	public long getCount() {
+		return _n;
+	}
+	
+	public double getMean() {
+		return _mean;
+	}
+	
+	/**
+	 * Returns the population central moment of the specified order, which is the
+	 * average of the deviations from the mean raised to the order.
+	 * 
+	 * @param moment order between one and four
+	 * @return central moment
+	 */
+	public double getCentralMoment(int moment) {
+		switch(moment) {
+			case 1: return 0.0;
+			case 2: return _m2 / _n;
+			case 3: return _m3 / _n;
+			case 4: return _m4 / _n;
+			default: throw new IllegalArgumentException("Central moment " + moment + " is not tracked");
+		}
+	}
+}
@@ -0,0 +1,125 @@
+package com.ashwin.fri.stocks.forecast;
+
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+
+import com.ashwin.fri.stocks.hibernate.Number;
+import com.ashwin.fri.stocks.hibernate.Submission;
+import com.ashwin.fri.stocks.hibernate.Tag;
+
+/**
+ * Verifies that the growth vectors computed inside the database, and the growth
+ * vectors read from the growth table, match the growth vectors computed from the
+ * numbers in Java, for every submission of an industry and for both the input and
+ * the output tags of the discounted cash flow forecast. The tester reports the number
+ * of rows each way sends to the JVM, how long each way takes, and the largest relative
+ * difference from the Java calculation. The tester fails if a growth rate is missing
+ * one way but not the other, or if the relative difference of any growth rate exceeds
+ * the tolerance.
+ * 
+ * Usage: PushdownTester [sic] [tolerance]
+ * 
+ * @author ashwin
+ */
+public class PushdownTester {
+	
+	public static void main(String[] args) {
+		int sic          = (args.length > 0) ? Integer.parseInt(args[0]) : 1311;
+		double tolerance = (args.length > 1) ? Double.parseDouble(args[1]) : 1e-9;
+		
+		Forecast forecast = new Forecast(sic, 15, "Revenues", "CostsAndExpenses", "TaxesOther",
+				"InvestmentIncomeNonOperating", "AssetsCurrent", "LiabilitiesCurrent");
+		List<Submission> submissions = forecast.getSubmissions(new Date(0), new Date(System.currentTimeMillis()));
+		System.out.println("Comparing the growth vectors of " + submissions.size() + " submissions");
+		
+		boolean passed = true;
+		passed &= compare("Inputs", submissions, forecast.getInputTags(), tolerance);
+		passed &= compare("Outputs", submissions, forecast.getOutputTags(), tolerance);
+		
+		System.out.println(passed ? "PASSED" : "FAILED");
+		if(!passed)
+			System.exit(1);
+	}
+	
+	/**
+	 * Computes the growth vectors of the submissions every way, and reports how they
+	 * differ. Returns true if they match.
+	 * 
+	 * @param label
+	 * @param submissions
+	 * @param tags
+	 * @param tolerance
+	 * @return
+	 */
+	private static boolean compare(String label, List<Submission> submissions, List<Tag> tags,
+			double tolerance) {
+		// Step 1: Compute the growth vectors in Java from every number of the submissions.
+		long time = System.currentTimeMillis();
+		long numbers = 0;
+		double[][] expected = new double[submissions.size()][];
+		for(int i = 0; i < submissions.size(); i++) {
+			List<Number> rows = Forecast.getNumbers(submissions.get(i), tags);
+			numbers += rows.size();
+			expected[i] = Forecast.getGrowthVector(rows, tags, new double[tags.size()], 0);
+		}
+		long java = System.currentTimeMillis() - time;
+		
+		System.out.println(String.format("%-8s %-6s %9d rows in %6d ms", label, "java:", numbers, java));
+		
+		// Step 2: Compute the growth vectors inside the database, and read them from the
+		// growth table.
+		time = System.currentTimeMillis();
+		Map<String, double[]> pushdown = Forecast.getGrowthVectors(submissions, tags);
+		boolean passed = compare(label, "sql:", expected, submissions, pushdown, System.currentTimeMillis() - time,
+				tolerance);
+		
+		time = System.currentTimeMillis();
+		Map<String, double[]> stored = Forecast.getStoredGrowthVectors(submissions, tags);
+		passed &= compare(label, "table:", expected, submissions, stored, System.currentTimeMillis() - time,
+				tolerance);
+		return passed;
+	}
+	
+	/**
+	 * Compares the growth rates of every submission and tag with the expected growth
+	 * rates, and reports how they differ. Returns true if they match.
+	 * 
+	 * @param label
+	 * @param source
+	 * @param expected
+	 * @param submissions
+	 * @param actual
+	 * @param time
+	 * @param tolerance
+	 * @return
+	 */
+	private static boolean compare(String label, String source, double[][] expected, List<Submission> submissions,
+			Map<String, double[]> actual, long time, double tolerance) {
+		long growths = 0;
+		int mismatches = 0;
+		double worst = 0.0;
+		for(int i = 0; i < submissions.size(); i++) {
+			double[] vector = actual.get(submissions.get(i).getAdsh());
+			for(int j = 0; j < vector.length; j++) {
+				if(!Double.isNaN(vector[j]))
+					growths++;
+				
+				if(Double.isNaN(expected[i][j]) || Double.isNaN(vector[j])) {
+					if(Double.isNaN(expected[i][j]) != Double.isNaN(vector[j]))
+						mismatches++;
+					continue;
+				}
+				
+				double error = Math.abs(expected[i][j] - vector[j]) / Math.max(1.0, Math.abs(expected[i][j]));
+				worst = Math.max(worst, error);
+				if(error > tolerance)
+					mismatches++;
+			}
+		}
+		
+		System.out.println(String.format("%-8s %-6s %9d rows in %6d ms, max error %.3e, %d mismatches", label,
+				source, growths, time, worst, mismatches));
+		return mismatches == 0;
+	}
+}
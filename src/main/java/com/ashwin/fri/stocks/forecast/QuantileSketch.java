@@ -0,0 +1,226 @@
+package com.ashwin.fri.stocks.forecast;
+
+import java.io.Serializable;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Random;
+
+/**
+ * A quantile sketch summarizes a sample in bounded memory, so that quantiles
+ * of the sample can be estimated without storing it. This is a KLL sketch: the
+ * sketch is a hierarchy of compactors, where every item in level h stands for
+ * 2^h items of the sample. When a level fills up, it is sorted and every other
+ * item is promoted to the next level, starting at a random offset. Lower levels
+ * have smaller capacities, so the sketch holds roughly 3k items in total.
+ * 
+ * Two sketches can be merged by concatenating their levels and compacting. As
+ * long as no level has been compacted, the sketch is exact.
+ * 
+ * @author ashwin
+ */
+public class QuantileSketch implements Serializable {
+	
+	private static final long serialVersionUID = -1893726102953880216L;
+	
+	/** Default capacity of the top level of the sketch. */
+	public static final int DEFAULT_K = 200;
+	
+	/** Ratio between the capacities of a level and the level above it. */
+	private static final double CAPACITY_DECAY = 2.0 / 3.0;
+	private static final int MIN_CAPACITY = 2;
+	
+	private int _k;
+	private long _n;
+	private double[][] _levels;
+	private int[] _sizes;
+	private Random _random;
+	
+	/** Capacities of the levels at the current height, which change only when it grows. */
+	private transient int[] _capacities;
+	
+	public QuantileSketch() {
+		this(DEFAULT_K);
+	}
+	
+	/**
+	 * Creates an empty sketch whose top level holds k items.
+	 * 
+	 * @param k
+	 */
+	public QuantileSketch(int k) {
+		if(k < MIN_CAPACITY)
+			throw new IllegalArgumentException("Sketch capacity must be at least " + MIN_CAPACITY);
+		
+		_k = k;
+		_levels = new double[][] { new double[k] };
+		_sizes = new int[1];
+		_random = new Random(k);
+	}
+	
+	/**
+	 * Creates a deep copy of the specified sketch.
+	 * 
+	 * @param sketch
+	 */
+	public QuantileSketch(QuantileSketch sketch) {
+		_k = sketch._k;
+		_n = sketch._n;
+		_levels = new double[sketch._levels.length][];
+		for(int h = 0; h < _levels.length; h++)
+			_levels[h] = sketch._levels[h].clone();
+		_sizes = sketch._sizes.clone();
+		_random = new Random(_k + _n);
+	}
+	
+	public int getK() {
+		return _k;
+	}
+	
+	/**
+	 * @return number of values that were added to the sketch
+	 */
+	public long getCount() {
+		return _n;
+	}
+	
+	/**
+	 * @return number of items that the sketch currently stores
+	 */
+	public int getRetained() {
+		int retained = 0;
+		for(int size : _sizes)
+			retained += size;
+		return retained;
+	}
+	
+	/**
+	 * Adds a value to the sketch.
+	 * 
+	 * @param value
+	 */
+	public void add(double value) {
+		append(0, value);
+		_n++;
+		compress();
+	}
+	
+	/**
+	 * Merges the specified sketch into this sketch. The specified sketch is not
+	 * modified.
+	 * 
+	 * @param sketch
+	 */
+	public void merge(QuantileSketch sketch) {
+		for(int h = 0; h < sketch._levels.length; h++)
+			for(int i = 0; i < sketch._sizes[h]; i++)
+				append(h, sketch._levels[h][i]);
+		_n += sketch._n;
+		compress();
+	}
+	
+	/**
+	 * Returns the estimated value at the specified quantile. The quantile is the
+	 * item with rank (int) (q * n) in the sorted sample, where n is the number of
+	 * values added to the sketch. If the sketch is still exact, this is exactly
+	 * the value at that index of the sorted sample.
+	 * 
+	 * @param q quantile between 0.0 and 1.0
+	 * @return
+	 */
+	public double getQuantile(double q) {
+		if(_n == 0)
+			throw new IllegalStateException("Quantiles of an empty sketch are undefined");
+		
+		// Collect every retained item with its weight and sort them by value.
+		int retained = getRetained();
+		double[] values = new double[retained];
+		long[] weights = new long[retained];
+		Integer[] order = new Integer[retained];
+		for(int h = 0, i = 0; h < _levels.length; h++) {
+			for(int j = 0; j < _sizes[h]; j++, i++) {
+				values[i] = _levels[h][j];
+				weights[i] = 1L << h;
+				order[i] = i;
+			}
+		}
+		
+		final double[] v = values;
+		Arrays.sort(order, new Comparator<Integer>() {
+			@Override
+			public int compare(Integer a, Integer b) {
+				return Double.compare(v[a], v[b]);
+			}
+		});
+		
+		// The estimated rank of an item is the total weight of the items before it.
+		long rank = (long) (q * _n);
+		long cumulative = 0;
+		for(int i = 0; i < retained; i++) {
+			cumulative += weights[order[i]];
+			if(cumulative > rank)
+				return values[order[i]];
+		}
+		return values[order[retained - 1]];
+	}
+	
+	private void append(int level, double value) {
+		while(level >= _levels.length) {
+			_levels = Arrays.copyOf(_levels, _levels.length + 1);
+			_sizes = Arrays.copyOf(_sizes, _sizes.length + 1);
+			_levels[_levels.length - 1] = new double[MIN_CAPACITY];
+		}
+		
+		if(_sizes[level] == _levels[level].length)
+			_levels[level] = Arrays.copyOf(_levels[level], Math.max(MIN_CAPACITY, 2 * _sizes[level]));
+		_levels[level][_sizes[level]++] = value;
+	}
+	
+	/**
+	 * Compacts every level that exceeds its capacity, from the bottom up.
+	 */
+	private void compress() {
+		for(int h = 0; h < _levels.length; h++) {
+			// Compacting the top level adds a level, which changes every capacity.
+			if(_capacities == null || _capacities.length != _levels.length)
+				_capacities = getCapacities(_levels.length);
+			if(_sizes[h] >= _capacities[h])
+				compact(h);
+		}
+	}
+	
+	/**
+	 * Sorts the level and promotes every other item to the next level. If the
+	 * level holds an odd number of items, then the largest item stays behind.
+	 * 
+	 * @param level
+	 */
+	private void compact(int level) {
+		double[] items = _levels[level];
+		int size = _sizes[level];
+		Arrays.sort(items, 0, size);
+		
+		int pairs = size / 2 * 2;
+		for(int i = _random.nextBoolean() ? 1 : 0; i < pairs; i += 2)
+			append(level + 1, items[i]);
+		
+		// The level above may have been reallocated, but this level was not.
+		if(size > pairs)
+			items[0] = items[size - 1];
+		_sizes[level] = size - pairs;
+	}
+	
+	/**
+	 * Returns the capacity of every level in a sketch with the specified number of
+	 * levels. The top level holds k items, and each level below holds two thirds
+	 * of the level above it.
+	 * 
+	 * @param height
+	 * @return
+	 */
+	private int[] getCapacities(int height) {
+		int[] capacities = new int[height];
+		for(int h = 0; h < height; h++)
+			capacities[h] = Math.max(MIN_CAPACITY, (int) Math.ceil(_k * Math.pow(CAPACITY_DECAY, height - h - 1)));
+		return capacities;
+	}
+}
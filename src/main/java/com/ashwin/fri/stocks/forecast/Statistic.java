@@ -1,8 +1,6 @@
 package com.ashwin.fri.stocks.forecast;
 
 import java.io.Serializable;
-import java.util.ArrayList;
-import java.util.Collections;
 import java.util.List;
 
 /**
@@ -11,50 +9,202 @@ import java.util.List;
  * deviation, skewness, kurtosis, and margin of error.
  * 
  * @author ashwin
- *
+ * 
  */
 public class Statistic implements Serializable {
 	
 	private static final long serialVersionUID = -995301427142018566L;
 	
+	/** Number of interquartile ranges beyond the quartiles at which values are outliers. */
+	private static final double FENCE = 1.8;
+	
 	private double _mean, _stdev, _skewness, _kurtosis, _marginOfError;
 	private int _N;
-
+	
+	private double _lower, _upper;
+	private Moments _moments;
+	private QuantileSketch _sketch;
+	
 	public Statistic(List<Double> values) {
-		List<Double> sorted = new ArrayList<Double>(values);
-		Collections.sort(sorted);
-		double q1  = sorted.get((int) (1 * sorted.size() / 4.0));
-		double q3  = sorted.get((int) (3 * sorted.size() / 4.0));
-		double iqr = q3 - q1;
-				
+		this(toArray(values));
+	}
+	
+	/**
+	 * Computes the statistics of a primitive sample. The quartiles are found with a
+	 * selection algorithm on a copy of the sample, and the moments of the values that
+	 * are not outliers are then accumulated in a single pass.
+	 * 
+	 * @param values
+	 */
+	public Statistic(double[] values) {
+		this(values, 0, false);
+	}
+	
+	/**
+	 * Computes the statistics of a primitive sample in bounded memory. Rather than
+	 * selecting the quartiles from a copy of the sample, the quartiles are estimated
+	 * with a quantile sketch of the specified accuracy, and the moments of the values
+	 * that are not outliers are then accumulated in a second pass. The sample is never
+	 * copied, and the statistic retains roughly 3k values however large the sample is.
+	 * The rank error of the quartiles is roughly 1.5 / k.
+	 * 
+	 * @param values
+	 * @param accuracy capacity k of the quantile sketch
+	 */
+	public Statistic(double[] values, int accuracy) {
+		this(values, accuracy, false);
+	}
+	
+	/**
+	 * Computes the statistics of a primitive sample. If the accuracy is positive, then
+	 * the quartiles are estimated with a quantile sketch of that capacity, and otherwise
+	 * they are selected exactly. A mergeable statistic keeps the moments of its values
+	 * that are not outliers and a quantile sketch of all its values, so that it can later
+	 * be merged with other statistics in bounded memory. If the quartiles are exact, then
+	 * the sketch of a mergeable statistic has the default capacity.
+	 * 
+	 * @param values
+	 * @param accuracy capacity k of the quantile sketch, or zero for exact quartiles
+	 * @param mergeable whether or not the statistic can be merged
+	 */
+	public Statistic(double[] values, int accuracy, boolean mergeable) {
+		if(values.length == 0)
+			throw new IllegalArgumentException("Statistics of an empty sample are undefined");
+		
+		QuantileSketch sketch = null;
+		if(accuracy > 0 || mergeable) {
+			sketch = new QuantileSketch((accuracy > 0) ? accuracy : QuantileSketch.DEFAULT_K);
+			for(double value : values)
+				sketch.add(value);
+		}
+		
+		if(accuracy > 0) {
+			setFences(sketch.getQuantile(0.25), sketch.getQuantile(0.75));
+		} else {
+			double[] copy = values.clone();
+			int k1 = (int) (1 * copy.length / 4.0);
+			int k3 = (int) (3 * copy.length / 4.0);
+			double q1  = select(copy, 0, copy.length, k1);
+			double q3  = select(copy, k1, copy.length, k3);
+			setFences(q1, q3);
+		}
+		
 		// Remove all the outliers from the list of values. Outliers are
 		// defined as elements whose values exceed q3 + 1.5 * iqr or
 		// values less than q1 - 1.5 * iqr. Once these values have been
 		// removed from the sample, statistics can be calculated normally.
-		List<Double> sample = new ArrayList<Double>();
-		for(Double value : values)
-			if(value >= q1 - 1.8 * iqr && value  <= q3 + 1.8 * iqr)
-				sample.add(value);
-				
-		_mean = getCentralMoment(sample, 0, 1);
-		_N = sample.size();
+		Moments moments = new Moments();
+		for(double value : values)
+			if(value >= _lower && value <= _upper)
+				moments.add(value);
+		
+		summarize(moments);
+		
+		// Only a mergeable statistic needs its moments and sketch after it is summarized.
+		if(mergeable) {
+			_moments = moments;
+			_sketch = sketch;
+		}
+	}
+	
+	/**
+	 * Creates the statistic of the union of partitions from the merged moments of
+	 * their values that are not outliers and the merged sketch of all their values.
+	 * 
+	 * @param moments
+	 * @param sketch
+	 */
+	private Statistic(Moments moments, QuantileSketch sketch) {
+		_moments = moments;
+		_sketch = sketch;
+		setFences(sketch.getQuantile(0.25), sketch.getQuantile(0.75));
+		summarize(moments);
+	}
+	
+	/**
+	 * Returns the statistic of the union of the samples of this statistic and the
+	 * specified statistic, which must both be mergeable, without revisiting either
+	 * sample. Neither statistic is modified, and the merged statistic is mergeable.
+	 * 
+	 * The merge is an approximation of the statistic of the union. The moments are the
+	 * exact moments of the union of the values that each partition did not consider to
+	 * be outliers, because they are combined with the pairwise updates of Chan and
+	 * Pebay. The outlier fences of the union are estimated from the merged quantile
+	 * sketches, within the rank error of the sketch. A value that one partition threw
+	 * out may lie within the merged fences, or the other way around, so the moments
+	 * may differ from those of a statistic calculated from the union at once. In return,
+	 * a mergeable statistic takes the same memory however many partitions it merges.
+	 * This allows statistics to be updated quarter by quarter without forgetting older
+	 * data, or partitions of a column to be summarized on different threads.
+	 * 
+	 * @param other
+	 * @return merged statistic
+	 */
+	public Statistic merge(Statistic other) {
+		if(!isMergeable() || !other.isMergeable())
+			throw new IllegalStateException("Only mergeable statistics can be merged");
+		
+		Moments moments = new Moments(_moments);
+		moments.merge(other._moments);
+		QuantileSketch sketch = new QuantileSketch(_sketch);
+		sketch.merge(other._sketch);
+		return new Statistic(moments, sketch);
+	}
+	
+	/**
+	 * @return true if the statistic keeps its moments and sketch and can be merged
+	 */
+	public boolean isMergeable() {
+		return _sketch != null;
+	}
+	
+	private void setFences(double q1, double q3) {
+		double iqr = q3 - q1;
+		_lower = q1 - FENCE * iqr;
+		_upper = q3 + FENCE * iqr;
+	}
+	
+	private void summarize(Moments moments) {
+		_mean = moments.getMean();
+		_N = (int) moments.getCount();
 		
 		// Some statistics require computations on sample statistics.
 		// To make a population statistic into a sample statistic, multiply
 		// by the bias quantity.
 		double bias = _N / (_N - 1);
 		
-		double variance = getCentralMoment(sample, _mean, 2);
+		double variance = moments.getCentralMoment(2);
 		_stdev = Math.sqrt(variance * bias);
 		if(_stdev == 0)
 			_stdev = Math.pow(10, -9);
 		
-		_skewness = getCentralMoment(sample, _mean, 3) * bias / Math.pow(_stdev, 3);
-		_kurtosis = getCentralMoment(sample, _mean, 4) / Math.pow(_stdev, 4);
+		_skewness = moments.getCentralMoment(3) * bias / Math.pow(_stdev, 3);
+		_kurtosis = moments.getCentralMoment(4) / Math.pow(_stdev, 4);
 		double standardError = _stdev / Math.sqrt(_N);
 		_marginOfError = 1.96 * standardError;
 	}
 	
+	/**
+	 * @return number of values that are not outliers
+	 */
+	public int getCount() {
+		return _N;
+	}
+	
+	/**
+	 * @return lower bound of the values that are not outliers
+	 */
+	public double getLowerFence() {
+		return _lower;
+	}
+	
+	/**
+	 * @return upper bound of the values that are not outliers
+	 */
+	public double getUpperFence() {
+		return _upper;
+	}
+	
 	public double getMean() {
 		return _mean;
 	}
@@ -97,10 +247,57 @@ public class Statistic implements Serializable {
 		return norm * _stdev + _mean;
 	}
 	
-	private static double getCentralMoment(List<Double> values, double mean, int moment) {
-		double sum = 0.0;
-		for(int i = 0; i < values.size(); i++)
-			sum += Math.pow(values.get(i) - mean, moment);
-		return sum / values.size();
+	private static double[] toArray(List<Double> values) {
+		double[] array = new double[values.size()];
+		for(int i = 0; i < array.length; i++)
+			array[i] = values.get(i);
+		return array;
+	}
+	
+	/**
+	 * Returns the value that would be at index k if the specified range of the
+	 * array were sorted. The range is partially reordered, such that all values
+	 * before index k are less than or equal to the returned value and all values
+	 * after it are greater than or equal to it. Runs in expected linear time.
+	 * 
+	 * @param values
+	 * @param from first index of the range, inclusive
+	 * @param to last index of the range, exclusive
+	 * @param k
+	 * @return
+	 */
+	static double select(double[] values, int from, int to, int k) {
+		int lo = from, hi = to - 1;
+		while(lo < hi) {
+			// Partition around the median of the first, middle and last values,
+			// which avoids quadratic behavior on sorted and reverse sorted input.
+			int mid = (lo + hi) >>> 1;
+			if(values[mid] < values[lo]) swap(values, mid, lo);
+			if(values[hi] < values[lo]) swap(values, hi, lo);
+			if(values[hi] < values[mid]) swap(values, hi, mid);
+			double pivot = values[mid];
+			
+			int i = lo, j = hi;
+			while(i <= j) {
+				while(values[i] < pivot) i++;
+				while(values[j] > pivot) j--;
+				if(i <= j)
+					swap(values, i++, j--);
+			}
+			
+			if(k <= j)
+				hi = j;
+			else if(k >= i)
+				lo = i;
+			else
+				return values[k];
+		}
+		return values[k];
+	}
+	
+	private static void swap(double[] values, int i, int j) {
+		double tmp = values[i];
+		values[i] = values[j];
+		values[j] = tmp;
 	}
 }
@@ -0,0 +1,412 @@
+package com.ashwin.fri.stocks.forecast;
+
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import com.ashwin.fri.stocks.hibernate.Submission;
+
+/**
+ * The training pipeline generates the training samples of a forecast in stages
+ * that run concurrently, so that the database, the growth computations and the
+ * training of the networks are all busy at the same time. Each stage has its own
+ * thread pool, and consecutive stages are connected by bounded queues. A stage
+ * that gets ahead of the next stage blocks once the queue between them is full.
+ * The fetch stage also never runs more than the capacity of the pipeline ahead of
+ * the normalize stage, which bounds the memory of the pipeline.
+ * 
+ * 1. Fetch: loads the raw growth vectors of each consecutive pair of submissions of
+ *    the same registrant from the feature cache, or computes them from the numbers in
+ *    the database. This stage has one thread per database connection.
+ * 2. Growth: builds the raw feature rows of each pair, and drops the pairs with too
+ *    many missing inputs.
+ * 3. Normalize: restores the original order of the pairs, interpolates missing
+ *    values, throws out outliers and scales the targets. If the column statistics
+ *    have to be recalculated, then this stage has to buffer every pair before it can
+ *    normalize the first one; otherwise, pairs are normalized as they arrive. If a
+ *    prefix is specified, then only the pairs of the prefix are buffered, and the
+ *    statistics are calculated from them. The statistics of a prefix are only an
+ *    estimate of the statistics of every pair, because the pairs are ordered by
+ *    registrant, but they let training start before the last pair has been loaded.
+ * 4. Train: the caller takes the samples from the pipeline in their original order.
+ * 
+ * Samples come out of the pipeline in exactly the same order, and with exactly the
+ * same values, as they would if they were generated one after the other.
+ * 
+ * @author ashwin
+ */
+public class TrainingPipeline implements Closeable {
+	
+	/** Default number of items that may wait between two stages. */
+	public static final int DEFAULT_CAPACITY = 256;
+	
+	private static final long POLL_INTERVAL = 100;
+	
+	private final Forecast _forecast;
+	private final List<Submission> _submissions;
+	private final int[] _pairs;
+	private final double _confidence;
+	private final boolean _statistics;
+	private final int _prefix;
+	private final int _threads;
+	
+	private final BlockingQueue<Fetched> _fetched;
+	private final BlockingQueue<Row> _grown;
+	private final BlockingQueue<Sample> _samples;
+	
+	private final Semaphore _window;
+	private final ExecutorService _fetchers, _growers, _normalizer;
+	private final AtomicReference<Throwable> _failure;
+	private boolean _done;
+	
+	/**
+	 * Creates a pipeline over the consecutive pairs of the specified submissions,
+	 * starting with the submission at the specified index.
+	 * 
+	 * @param forecast
+	 * @param submissions submissions ordered by registrant and filing date
+	 * @param first index of the first submission
+	 * @param confidence
+	 * @param statistics true if the column statistics should be recalculated
+	 * @param prefix number of rows the statistics are calculated from, or zero for every row
+	 * @param threads number of threads that fetch from the database
+	 * @param capacity number of items that may wait between two stages
+	 */
+	public TrainingPipeline(Forecast forecast, List<Submission> submissions, int first, double confidence,
+			boolean statistics, int prefix, int threads, int capacity) {
+		_forecast = forecast;
+		_submissions = submissions;
+		_confidence = confidence;
+		_statistics = statistics;
+		_prefix = prefix;
+		_threads = threads;
+		
+		// The output values of a submission are the current values of the next filed
+		// submission. If the data for the next filed submission is unknown, then we
+		// can't use this submission as traning data.
+		List<Integer> pairs = new ArrayList<Integer>();
+		for(int i = first; i < submissions.size() - 1; i++)
+			if(submissions.get(i+0).getRegistrant().equals(submissions.get(i+1).getRegistrant()))
+				pairs.add(i);
+		
+		_pairs = new int[pairs.size()];
+		for(int k = 0; k < _pairs.length; k++)
+			_pairs[k] = pairs.get(k);
+		
+		_fetched = new ArrayBlockingQueue<Fetched>(capacity);
+		_grown = new ArrayBlockingQueue<Row>(capacity);
+		_samples = new ArrayBlockingQueue<Sample>(capacity);
+		_window = new Semaphore(capacity);
+		
+		_fetchers = Executors.newFixedThreadPool(threads, getThreadFactory("fetch"));
+		_growers = Executors.newSingleThreadExecutor(getThreadFactory("growth"));
+		_normalizer = Executors.newSingleThreadExecutor(getThreadFactory("normalize"));
+		_failure = new AtomicReference<Throwable>();
+	}
+	
+	/**
+	 * Starts every stage of the pipeline. This method returns immediately.
+	 */
+	public void start() {
+		final AtomicInteger cursor = new AtomicInteger();
+		for(int t = 0; t < _threads; t++) {
+			_fetchers.execute(new Stage() {
+				@Override
+				protected void process() throws InterruptedException {
+					while(true) {
+						// A permit is returned once the normalize stage reaches the pair,
+						// so a slow fetch can't let the other fetchers run away.
+						_window.acquire();
+						int k = cursor.getAndIncrement();
+						if(k >= _pairs.length)
+							return;
+						_fetched.put(fetch(k));
+					}
+				}
+			});
+		}
+		
+		_growers.execute(new Stage() {
+			@Override
+			protected void process() throws InterruptedException {
+				for(int k = 0; k < _pairs.length; k++)
+					_grown.put(grow(_fetched.take()));
+			}
+		});
+		
+		_normalizer.execute(new Stage() {
+			@Override
+			protected void process() throws InterruptedException {
+				normalize();
+			}
+		});
+	}
+	
+	/**
+	 * Returns the next training sample, waiting for it if necessary. Once all the
+	 * samples have been taken, this method returns null.
+	 * 
+	 * @return next sample, or null if there are no samples left
+	 * @throws ExecutionException if any stage of the pipeline failed
+	 * @throws InterruptedException
+	 */
+	public Sample next() throws ExecutionException, InterruptedException {
+		while(!_done) {
+			Sample sample = _samples.poll(POLL_INTERVAL, TimeUnit.MILLISECONDS);
+			if(sample == Sample.END)
+				_done = true;
+			else if(sample != null)
+				return sample;
+			else if(_failure.get() != null)
+				throw new ExecutionException(_failure.get());
+		}
+		return null;
+	}
+	
+	/**
+	 * Takes every remaining sample from the pipeline and returns them as a training set.
+	 * 
+	 * @return
+	 * @throws ExecutionException if any stage of the pipeline failed
+	 * @throws InterruptedException
+	 */
+	public TrainingSet drain() throws ExecutionException, InterruptedException {
+		List<double[]> inputs  = new ArrayList<double[]>();
+		List<double[]> targets = new ArrayList<double[]>();
+		List<Submission> samples = new ArrayList<Submission>();
+		for(Sample sample = next(); sample != null; sample = next()) {
+			inputs.add(sample.getInputs());
+			targets.add(sample.getTargets());
+			samples.add(sample.getSubmission());
+		}
+		
+		return new TrainingSet(inputs.toArray(new double[inputs.size()][]),
+				targets.toArray(new double[targets.size()][]), samples);
+	}
+	
+	/**
+	 * Stops every stage of the pipeline. Stages that are still running are interrupted.
+	 */
+	@Override
+	public void close() {
+		_fetchers.shutdownNow();
+		_growers.shutdownNow();
+		_normalizer.shutdownNow();
+	}
+	
+	private Fetched fetch(int k) {
+		int i = _pairs[k];
+		FeatureCache cache = Forecast.getFeatureCache();
+		return new Fetched(k,
+				cache.get(_submissions.get(i+0), _forecast.getInputTags()),
+				cache.get(_submissions.get(i+1), _forecast.getOutputTags()));
+	}
+	
+	/**
+	 * Computes the raw feature rows of a pair. If the input vector contains too many
+	 * missing values, then the row is returned without any data, so that the next
+	 * stage still knows that the pair has been processed.
+	 * 
+	 * @param fetched
+	 * @return
+	 */
+	private Row grow(Fetched fetched) {
+		int inputs = _forecast.getInputTags().size();
+		double[] ri = new double[inputs + 2];
+		System.arraycopy(fetched._in, 0, ri, 1, inputs);
+		if(!Forecast.isConfident(ri, 1, inputs + 1, _confidence))
+			return new Row(fetched._k, null, null);
+		
+		// The cached vectors are shared, so the rows that are normalized in place are copies.
+		return new Row(fetched._k, ri, fetched._out.clone());
+	}
+	
+	/**
+	 * Normalizes the rows in the original order of the pairs. Rows that arrive ahead
+	 * of their turn wait in a reorder buffer, which is bounded by the capacity of the
+	 * pipeline. If the statistics are recalculated, then the rows of the prefix are
+	 * buffered until the statistics have been calculated from them.
+	 * 
+	 * @throws InterruptedException
+	 */
+	private void normalize() throws InterruptedException {
+		int limit = (_prefix > 0) ? Math.min(_prefix, _pairs.length) : _pairs.length;
+		boolean buffering = _statistics;
+		int size = 0;
+		double[][] ri = new double[_statistics ? limit : 0][];
+		double[][] ro = new double[_statistics ? limit : 0][];
+		List<Submission> rs = new ArrayList<Submission>();
+		double[] oi = new double[_forecast.getOutputTags().size() + 1];
+		
+		Map<Integer, Row> pending = new HashMap<Integer, Row>();
+		for(int k = 0; k < _pairs.length; k++) {
+			Row row = pending.remove(k);
+			while(row == null) {
+				Row next = _grown.take();
+				if(next._k == k)
+					row = next;
+				else
+					pending.put(next._k, next);
+			}
+			_window.release();
+			
+			if(row._ri == null)
+				continue;
+			
+			Submission submission = _submissions.get(_pairs[k]);
+			if(buffering) {
+				ri[size] = row._ri;
+				ro[size] = row._ro;
+				rs.add(submission);
+				size++;
+				
+				// Once the prefix is complete, the statistics are calculated from it and
+				// every later row is normalized as soon as it arrives.
+				if(size == limit) {
+					flush(ri, ro, rs, size, oi);
+					buffering = false;
+				}
+			} else {
+				emit(row._ri, row._ro, submission, oi);
+			}
+		}
+		
+		// Rows were dropped, so there were fewer rows than the prefix.
+		if(buffering)
+			flush(ri, ro, rs, size, oi);
+		
+		_samples.put(Sample.END);
+	}
+	
+	/**
+	 * Calculates the column statistics from the buffered rows, and then normalizes them.
+	 * 
+	 * @param ri
+	 * @param ro
+	 * @param rs
+	 * @param size number of buffered rows
+	 * @param oi
+	 * @throws InterruptedException
+	 */
+	private void flush(double[][] ri, double[][] ro, List<Submission> rs, int size, double[] oi)
+			throws InterruptedException {
+		_forecast.setStatistics(ri, ro, size);
+		for(int i = 0; i < size; i++)
+			emit(ri[i], ro[i], rs.get(i), oi);
+	}
+	
+	private void emit(double[] ri, double[] ro, Submission submission, double[] oi) throws InterruptedException {
+		if(Forecast.toTrainingSample(ri, ro, submission, _forecast.getInputStatistics(),
+				_forecast.getOutputStatistics(), _forecast.getMaxDeviations(), oi))
+			_samples.put(new Sample(ri, ro, submission));
+	}
+	
+	private ThreadFactory getThreadFactory(final String stage) {
+		return new ThreadFactory() {
+			private final AtomicInteger _count = new AtomicInteger();
+			
+			@Override
+			public Thread newThread(Runnable runnable) {
+				Thread thread = new Thread(runnable, "pipeline-" + _forecast.getSic() + "-" + stage + "-" +
+						_count.getAndIncrement());
+				thread.setDaemon(true);
+				return thread;
+			}
+		};
+	}
+	
+	/**
+	 * A stage of the pipeline. If a stage fails, then the failure is recorded so that
+	 * the consumer sees it, and every other stage is stopped.
+	 */
+	private abstract class Stage implements Runnable {
+		
+		protected abstract void process() throws InterruptedException;
+		
+		@Override
+		public void run() {
+			try {
+				process();
+			} catch(InterruptedException e) {
+				Thread.currentThread().interrupt();
+			} catch(Throwable t) {
+				_failure.compareAndSet(null, t);
+				close();
+			}
+		}
+	}
+	
+	/**
+	 * The numbers of the input and output submissions of a pair.
+	 */
+	private static class Fetched {
+		
+		private final int _k;
+		private final double[] _in, _out;
+		
+		private Fetched(int k, double[] in, double[] out) {
+			_k = k;
+			_in = in;
+			_out = out;
+		}
+	}
+	
+	/**
+	 * The raw feature rows of a pair, or no rows if the pair was dropped.
+	 */
+	private static class Row {
+		
+		private final int _k;
+		private final double[] _ri, _ro;
+		
+		private Row(int k, double[] ri, double[] ro) {
+			_k = k;
+			_ri = ri;
+			_ro = ro;
+		}
+	}
+	
+	/**
+	 * A training sample that has come out of the pipeline.
+	 */
+	public static class Sample {
+		
+		private static final Sample END = new Sample(null, null, null);
+		
+		private final double[] _inputs, _targets;
+		private final Submission _submission;
+		
+		private Sample(double[] inputs, double[] targets, Submission submission) {
+			_inputs = inputs;
+			_targets = targets;
+			_submission = submission;
+		}
+		
+		public double[] getInputs() {
+			return _inputs;
+		}
+		
+		/**
+		 * @return target output of each network, or NaN if the output is unknown
+		 */
+		public double[] getTargets() {
+			return _targets;
+		}
+		
+		public Submission getSubmission() {
+			return _submission;
+		}
+	}
+}
@@ -0,0 +1,339 @@
+package com.ashwin.fri.stocks.forecast;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.ObjectOutputStream;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.hibernate.Session;
+import org.hibernate.Transaction;
+import org.hibernate.criterion.Projections;
+import org.hibernate.criterion.Restrictions;
+
+import com.ashwin.fri.stocks.hibernate.HibernateConfig;
+import com.ashwin.fri.stocks.hibernate.Submission;
+
+/**
+ * The training scheduler trains the forecasts of many industries concurrently
+ * under a global budget of threads and memory. Industries are trained from the
+ * largest to the smallest, so that the largest industries don't start last and
+ * hold up the entire run. Before an industry starts training, it reserves an
+ * estimate of the memory it will need, and it waits until enough of the budget
+ * is free. An industry whose training fails is retried a number of times before
+ * it is given up on. Industries that haven't started by the deadline are skipped,
+ * so that the run fits into a maintenance window.
+ * 
+ * Subclasses can override configure to change how each forecast is trained, for
+ * example to enable early stopping.
+ * 
+ * Usage: TrainingScheduler [threads] [memory (MB)] [directory]
+ * 
+ * @author ashwin
+ */
+public class TrainingScheduler {
+	
+	/** Memory that every forecast needs regardless of its size, in megabytes. */
+	private static final int BASE_MEMORY = 16;
+	
+	/** Estimated overhead of every training sample in bytes, besides its values. */
+	private static final int SAMPLE_OVERHEAD = 128;
+	
+	private static final long RETRY_DELAY = 1000;
+	
+	private int _threads, _memory, _retries;
+	private long _deadline = Long.MAX_VALUE;
+	
+	private int _inputs;
+	private String[] _outputs;
+	
+	private Map<Integer, Throwable> _failures;
+	private List<Integer> _skipped;
+	
+	/**
+	 * Creates a scheduler for forecasts with the specified input and output tags.
+	 * 
+	 * @param threads maximum number of industries that train at the same time
+	 * @param memory memory budget of all industries that train at the same time, in megabytes
+	 * @param retries number of times a failed industry is retried
+	 * @param inputs number of input tags
+	 * @param outputs names of the output tags
+	 */
+	public TrainingScheduler(int threads, int memory, int retries, int inputs, String... outputs) {
+		_threads = threads;
+		_memory = memory;
+		_retries = retries;
+		_inputs = inputs;
+		_outputs = outputs;
+	}
+	
+	/**
+	 * Skips the industries that haven't started training by the specified time.
+	 * 
+	 * @param deadline time in milliseconds since the epoch
+	 */
+	public void setDeadline(long deadline) {
+		_deadline = deadline;
+	}
+	
+	/**
+	 * @return the last failure of each industry that could not be trained by the last run
+	 */
+	public Map<Integer, Throwable> getFailures() {
+		return _failures;
+	}
+	
+	/**
+	 * @return industries that were skipped by the last run, because of the deadline
+	 */
+	public List<Integer> getSkipped() {
+		return _skipped;
+	}
+	
+	/**
+	 * Configures a forecast before it is trained. By default, forecasts are trained
+	 * in a single pass.
+	 * 
+	 * @param forecast
+	 */
+	protected void configure(Forecast forecast) {
+	}
+	
+	/**
+	 * Trains the forecast of every specified industry on the submissions from the start
+	 * date to the end date, and returns the trained forecasts by industry. Industries
+	 * that failed or were skipped are left out of the result.
+	 * 
+	 * @param sics
+	 * @param start
+	 * @param end
+	 * @param confidence
+	 * @param learningRate
+	 * @param progress stream that progress is reported to
+	 * @return
+	 * @throws InterruptedException
+	 */
+	public Map<Integer, Forecast> train(List<Integer> sics, final Date start, final Date end,
+			final double confidence, final double learningRate, final PrintStream progress)
+			throws InterruptedException {
+		// Step 1: Estimate the size of each industry, and order the industries from the
+		// largest to the smallest.
+		final Map<Integer, Long> sizes = getSizes(start, end);
+		List<Integer> ordered = new ArrayList<Integer>(sics);
+		Collections.sort(ordered, new Comparator<Integer>() {
+			@Override
+			public int compare(Integer a, Integer b) {
+				return Long.compare(getSize(sizes, b), getSize(sizes, a));
+			}
+		});
+		
+		// Step 2: Train every industry on the shared pool. The database connections are
+		// divided between the industries that train at the same time. The semaphore is
+		// fair, so the largest industries reserve memory first.
+		final Semaphore memory = new Semaphore(_memory, true);
+		final int fetchers = Math.max(1, HibernateConfig.POOL_SIZE / _threads);
+		final AtomicInteger completed = new AtomicInteger();
+		final int total = ordered.size();
+		final long begin = System.currentTimeMillis();
+		
+		_failures = Collections.synchronizedMap(new TreeMap<Integer, Throwable>());
+		_skipped = Collections.synchronizedList(new ArrayList<Integer>());
+		
+		ExecutorService executor = Executors.newFixedThreadPool(_threads);
+		Map<Integer, Future<Forecast>> futures = new TreeMap<Integer, Future<Forecast>>();
+		try {
+			for(final Integer sic : ordered) {
+				final int reserved = Math.min(_memory, getMemory(getSize(sizes, sic)));
+				futures.put(sic, executor.submit(new Callable<Forecast>() {
+					@Override
+					public Forecast call() throws Exception {
+						memory.acquire(reserved);
+						try {
+							Forecast forecast = train(sic, fetchers, start, end, confidence, learningRate);
+							report(progress, completed.incrementAndGet(), total, begin, sic,
+									(forecast == null) ? "skipped" : "trained");
+							return forecast;
+						} catch(Exception e) {
+							report(progress, completed.incrementAndGet(), total, begin, sic, "failed: " + e);
+							throw e;
+						} finally {
+							memory.release(reserved);
+						}
+					}
+				}));
+			}
+			
+			Map<Integer, Forecast> forecasts = new TreeMap<Integer, Forecast>();
+			for(Map.Entry<Integer, Future<Forecast>> entry : futures.entrySet()) {
+				try {
+					Forecast forecast = entry.getValue().get();
+					if(forecast != null)
+						forecasts.put(entry.getKey(), forecast);
+				} catch(ExecutionException e) {
+					_failures.put(entry.getKey(), e.getCause());
+				}
+			}
+			return forecasts;
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+	
+	/**
+	 * Trains the forecast of a single industry, and retries it if it fails. Returns null
+	 * if the deadline passed before the industry could start.
+	 * 
+	 * @param sic
+	 * @param fetchers number of threads that load samples from the database
+	 * @param start
+	 * @param end
+	 * @param confidence
+	 * @param learningRate
+	 * @return
+	 * @throws Exception the failure of the last attempt
+	 */
+	private Forecast train(int sic, int fetchers, Date start, Date end, double confidence,
+			double learningRate) throws Exception {
+		for(int attempt = 0; ; attempt++) {
+			if(System.currentTimeMillis() > _deadline) {
+				_skipped.add(sic);
+				return null;
+			}
+			
+			try {
+				Forecast forecast = new Forecast(sic, _inputs, _outputs);
+				forecast.setPipeline(fetchers, false);
+				configure(forecast);
+				forecast.train(start, end, confidence, learningRate);
+				return forecast;
+			} catch(Exception e) {
+				if(attempt >= _retries)
+					throw e;
+				
+				// Back off exponentially, because most failures are caused by the database
+				// being temporarily unavailable or overloaded.
+				Thread.sleep(RETRY_DELAY << attempt);
+			}
+		}
+	}
+	
+	private static void report(PrintStream progress, int completed, int total, long begin, int sic,
+			String status) {
+		long elapsed = System.currentTimeMillis() - begin;
+		long remaining = elapsed / completed * (total - completed);
+		synchronized(progress) {
+			progress.println(String.format("[%d/%d] SIC %d %s (elapsed %ds, remaining ~%ds)",
+					completed, total, sic, status, elapsed / 1000, remaining / 1000));
+		}
+	}
+	
+	/**
+	 * Returns the estimated memory that training an industry needs, in megabytes. Every
+	 * sample has an input row, an output row and some overhead, and the rows are held
+	 * in memory twice while the column statistics are calculated.
+	 * 
+	 * @param submissions number of submissions of the industry
+	 * @return
+	 */
+	private int getMemory(long submissions) {
+		long sample = (_inputs + 2 + _outputs.length) * 8 + SAMPLE_OVERHEAD;
+		return (int) (BASE_MEMORY + 2 * submissions * sample / (1024 * 1024));
+	}
+	
+	private static long getSize(Map<Integer, Long> sizes, Integer sic) {
+		Long size = sizes.get(sic);
+		return (size == null) ? 0 : size;
+	}
+	
+	/**
+	 * Returns the number of 10-K and 10-Q submissions of each industry from the start
+	 * date to the end date.
+	 * 
+	 * @param start
+	 * @param end
+	 * @return
+	 */
+	@SuppressWarnings("unchecked")
+	static Map<Integer, Long> getSizes(Date start, Date end) {
+		Session session = HibernateConfig.FACTORY.openSession();
+		Transaction tx  = session.beginTransaction();
+		
+		List<Object[]> rows = session.createCriteria(Submission.class)
+				.createAlias("registrant", "registrant")
+				.add(Restrictions.eq("detailed", true))
+				.add(Restrictions.or(
+						Restrictions.eq("form", "10-K"),
+						Restrictions.eq("form", "10-K/A"),
+						Restrictions.eq("form", "10-Q"),
+						Restrictions.eq("form", "10-Q/A")))
+				.add(Restrictions.ge("filingDate", start))
+				.add(Restrictions.le("filingDate", end))
+				.add(Restrictions.isNotNull("registrant.sic"))
+				.setProjection(Projections.projectionList()
+						.add(Projections.groupProperty("registrant.sic"))
+						.add(Projections.rowCount()))
+				.list();
+		
+		tx.rollback();
+		session.close();
+		
+		Map<Integer, Long> sizes = new TreeMap<Integer, Long>();
+		for(Object[] row : rows)
+			sizes.put((Integer) row[0], ((Number) row[1]).longValue());
+		return sizes;
+	}
+	
+	/**
+	 * Trains the forecasts of the discounted cash flow analysis for every industry,
+	 * and writes each forecast to the directory as [sic].forecast.
+	 * 
+	 * @param args
+	 * @throws Exception
+	 */
+	public static void main(String[] args) throws Exception {
+		int threads   = (args.length > 0) ? Integer.parseInt(args[0]) : Runtime.getRuntime().availableProcessors();
+		int memory    = (args.length > 1) ? Integer.parseInt(args[1]) :
+			(int) (Runtime.getRuntime().maxMemory() / (1024 * 1024) * 3 / 4);
+		File directory = new File((args.length > 2) ? args[2] : "forecasts");
+		directory.mkdirs();
+		
+		Date start = new Date(0);
+		Date end   = new Date(System.currentTimeMillis());
+		TrainingScheduler scheduler = new TrainingScheduler(threads, memory, 2, 15,
+				"Revenues", "CostsAndExpenses", "TaxesOther", "InvestmentIncomeNonOperating",
+				"AssetsCurrent", "LiabilitiesCurrent") {
+			@Override
+			protected void configure(Forecast forecast) {
+				forecast.setEarlyStopping(50, 0.2, 3);
+			}
+		};
+		
+		Map<Integer, Forecast> forecasts = scheduler.train(new ArrayList<Integer>(getSizes(start, end).keySet()),
+				start, end, 0.70, 1.2, System.out);
+		for(Map.Entry<Integer, Forecast> entry : forecasts.entrySet()) {
+			ObjectOutputStream out = new ObjectOutputStream(
+					new FileOutputStream(new File(directory, entry.getKey() + ".forecast")));
+			try {
+				out.writeObject(entry.getValue());
+			} finally {
+				out.close();
+			}
+		}
+		
+		System.out.println(forecasts.size() + " trained, " + scheduler.getFailures().size() + " failed, " +
+				scheduler.getSkipped().size() + " skipped");
+	}
+}
@@ -0,0 +1,111 @@
+package com.ashwin.fri.stocks.forecast;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import com.ashwin.fri.stocks.hibernate.Submission;
+
+/**
+ * A training set contains the samples that a forecast trains its networks on.
+ * Each sample consists of the input vector of a submission and the target
+ * outputs of each of the networks, which have already been transformed onto
+ * the interval [0.0 - 1.0]. If the output of a particular network is unknown
+ * for a sample, then its target is NaN and the network should skip it.
+ * 
+ * @author ashwin
+ */
+public class TrainingSet {
+	
+	private double[][] _inputs, _targets;
+	private List<Submission> _submissions;
+	
+	public TrainingSet(double[][] inputs, double[][] targets, List<Submission> submissions) {
+		_inputs = inputs;
+		_targets = targets;
+		_submissions = submissions;
+	}
+	
+	public int size() {
+		return _inputs.length;
+	}
+	
+	/**
+	 * @return input vectors, one row per sample
+	 */
+	public double[][] getInputs() {
+		return _inputs;
+	}
+	
+	/**
+	 * @return target outputs, one row per sample and one column per network
+	 */
+	public double[][] getTargets() {
+		return _targets;
+	}
+	
+	/**
+	 * @return the submission that each sample was generated from
+	 */
+	public List<Submission> getSubmissions() {
+		return _submissions;
+	}
+	
+	/**
+	 * Splits the samples chronologically into a training and a validation set. The
+	 * samples whose submissions were filed last are moved to the end of the matrix,
+	 * while the remaining samples keep their relative order. The method returns the
+	 * index of the first validation sample. Samples are moved in place.
+	 * 
+	 * @param fraction fraction of samples to hold out for validation
+	 * @return index of the first validation sample
+	 */
+	public int split(double fraction) {
+		if(fraction <= 0 || size() == 0)
+			return size();
+		
+		long[] dates = new long[size()];
+		for(int i = 0; i < dates.length; i++)
+			dates[i] = _submissions.get(i).getFilingDate().getTime();
+		Arrays.sort(dates);
+		long cutoff = dates[Math.min(dates.length - 1, (int) ((1 - fraction) * dates.length))];
+		
+		int split = 0;
+		for(int i = 0; i < size(); i++)
+			if(_submissions.get(i).getFilingDate().getTime() < cutoff)
+				swap(split++, i);
+		return split;
+	}
+	
+	/**
+	 * Shuffles the samples in the specified range in place.
+	 * 
+	 * @param from index of the first sample, inclusive
+	 * @param to index of the last sample, exclusive
+	 * @param random
+	 */
+	public void shuffle(int from, int to, Random random) {
+		for(int i = to - 1; i > from; i--)
+			swap(i, from + random.nextInt(i - from + 1));
+	}
+	
+	/**
+	 * Swaps two samples. Only the row references are swapped, so this does not
+	 * copy any of the values in the rows.
+	 * 
+	 * @param i
+	 * @param j
+	 */
+	public void swap(int i, int j) {
+		double[] in = _inputs[i];
+		_inputs[i] = _inputs[j];
+		_inputs[j] = in;
+		
+		double[] out = _targets[i];
+		_targets[i] = _targets[j];
+		_targets[j] = out;
+		
+		Collections.swap(_submissions, i, j);
+	}
+}
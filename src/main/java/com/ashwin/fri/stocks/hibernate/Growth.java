@@ -0,0 +1,228 @@
+package com.ashwin.fri.stocks.hibernate;
+
+import java.io.Serializable;
+import java.util.Date;
+
+import javax.persistence.Column;
+import javax.persistence.Entity;
+import javax.persistence.Id;
+import javax.persistence.IdClass;
+import javax.persistence.Index;
+import javax.persistence.JoinColumn;
+import javax.persistence.ManyToOne;
+import javax.persistence.Table;
+
+import org.apache.commons.lang3.builder.EqualsBuilder;
+import org.apache.commons.lang3.builder.HashCodeBuilder;
+
+import com.ashwin.fri.stocks.hibernate.Growth.GrowthPK;
+
+/**
+ * The growth rate of a tag in a submission, which is precomputed when the numbers of
+ * the submission are loaded, because it never changes once the submission has been
+ * filed. For every duration of a tag, the growth rate is calculated between the latest
+ * number with that duration and the number that follows it when the numbers of the
+ * tag are ordered by duration and then from the latest to the earliest end date. The
+ * growth rate with the shortest duration is therefore exactly the one that
+ * Forecast.getGrowthVector calculates from the numbers.
+ * 
+ * The industry and filing date of the submission are copied into every growth rate,
+ * so that the growth rates of an industry can be looked up by filing date without
+ * joining the submissions and registrants.
+ * 
+ * @author ashwin
+ */
+@Entity
+@Table(name="growth", indexes={ @Index(name="growth_sic_filed", columnList="sic, filed") })
+@IdClass(GrowthPK.class)
+public class Growth implements Serializable {
+	
+	private static final long serialVersionUID = -2360573311924526781L;
+	
+	private Submission _submission;
+	private String _name;
+	private Integer _duration, _sic;
+	private Date _filingDate;
+	private Double _growth;
+	
+	public Growth() {}
+	
+	public Growth(Submission submission, String name, Integer duration, Integer sic, Date filingDate,
+			Double growth) {
+		
+		setSubmission(submission);
+		setName(name);
+		setDuration(duration);
+		setSic(sic);
+		setFilingDate(filingDate);
+		setGrowth(growth);
+	}
+	
+	/**
+	 * @return submission
+	 */
+	@Id
+	@ManyToOne
+	@JoinColumn(name="adsh")
+	public Submission getSubmission() {
+		return _submission;
+	}
+	
+	public void setSubmission(Submission submission) {
+		_submission = submission;
+	}
+	
+	/**
+	 * Returns the name of the tag. Growth rates are calculated across versions of a tag.
+	 * 
+	 * @return tag name
+	 */
+	@Id
+	@Column(name="name", length=255, nullable=false)
+	public String getName() {
+		return _name;
+	}
+	
+	public void setName(String name) {
+		_name = name;
+	}
+	
+	/**
+	 * Duration of the latest number of the growth rate in number of quarters.
+	 * 
+	 * @return duration
+	 */
+	@Id
+	@Column(name="duration", length=8, nullable=false)
+	public Integer getDuration() {
+		return _duration;
+	}
+	
+	public void setDuration(Integer duration) {
+		_duration = duration;
+	}
+	
+	/**
+	 * @return standard industrial classification of the registrant
+	 */
+	@Column(name="sic", length=4, nullable=true)
+	public Integer getSic() {
+		return _sic;
+	}
+	
+	public void setSic(Integer sic) {
+		_sic = sic;
+	}
+	
+	/**
+	 * @return filing date of the submission
+	 */
+	@Column(name="filed", nullable=false)
+	public Date getFilingDate() {
+		return _filingDate;
+	}
+	
+	public void setFilingDate(Date filingDate) {
+		_filingDate = filingDate;
+	}
+	
+	/**
+	 * Returns the quarter-over-quarter growth rate. Growth rates over several quarters
+	 * are annualized to a single quarter.
+	 * 
+	 * @return growth rate
+	 */
+	@Column(name="growth", nullable=false)
+	public Double getGrowth() {
+		return _growth;
+	}
+	
+	public void setGrowth(Double growth) {
+		_growth = growth;
+	}
+	
+	@Override
+	public int hashCode() {
+		return new HashCodeBuilder()
+			.append(_submission.getAdsh())
+			.append(_name)
+			.append(_duration)
+			.build();
+	}
+	
+	@Override
+	public boolean equals(Object obj) {
+		if(obj == null || !(obj instanceof Growth))
+			return false;
+		
+		Growth oth = (Growth) obj;
+		return new EqualsBuilder()
+				.append(_submission, oth.getSubmission())
+				.append(_name, oth.getName())
+				.append(_duration, oth.getDuration())
+				.build();
+	}
+	
+	public static class GrowthPK implements Serializable {
+		
+		private static final long serialVersionUID = 5516472734197160224L;
+		
+		private Submission _submission;
+		private String _name;
+		private Integer _duration;
+		
+		public GrowthPK() {}
+		
+		public GrowthPK(Submission submission, String name, Integer duration) {
+			setSubmission(submission);
+			setName(name);
+			setDuration(duration);
+		}
+		
+		public Submission getSubmission() {
+			return _submission;
+		}
+		
+		public void setSubmission(Submission submission) {
+			_submission = submission;
+		}
+		
+		public String getName() {
+			return _name;
+		}
+		
+		public void setName(String name) {
+			_name = name;
+		}
+		
+		public Integer getDuration() {
+			return _duration;
+		}
+		
+		public void setDuration(Integer duration) {
+			_duration = duration;
+		}
+		
+		@Override
+		public int hashCode() {
+			return new HashCodeBuilder()
+				.append(_submission)
+				.append(_name)
+				.append(_duration)
+				.build();
+		}
+		
+		@Override
+		public boolean equals(Object obj) {
+			if(obj == null || !(obj instanceof GrowthPK))
+				return false;
+			
+			GrowthPK oth = (GrowthPK) obj;
+			return new EqualsBuilder()
+					.append(_submission, oth.getSubmission())
+					.append(_name, oth.getName())
+					.append(_duration, oth.getDuration())
+					.build();
+		}
+	}
+}
@@ -15,15 +15,20 @@ public class HibernateConfig {
 
 	public static SessionFactory FACTORY;
 	
+	/** Maximum number of connections to the database. */
+	public static int POOL_SIZE;
+	
 	static {
 		try {
 			// Step 1: Load the properties file
 			Properties props = new Properties();
 			props.load(HibernateConfig.class.getResourceAsStream("/hibernate.properties"));
 					
-			// Step 2: Configure the connection pool to the database
+			// Step 2: Configure the connection pool to the database. Training loads samples
+			// on several threads, so each of them needs its own connection.
+			POOL_SIZE = Integer.parseInt(props.getProperty("dataSource.maximumPoolSize", "1"));
 			HikariConfig hikari = new HikariConfig();
-			hikari.setMaximumPoolSize(1);
+			hikari.setMaximumPoolSize(POOL_SIZE);
 			hikari.setDataSourceClassName(props.getProperty("dataSource.className"));
 			hikari.addDataSourceProperty("serverName", props.getProperty("dataSource.serverName"));
 			hikari.addDataSourceProperty("port", props.getProperty("dataSource.port"));
@@ -38,6 +43,7 @@ public class HibernateConfig {
 				.addAnnotatedClass(Number.class)
 				.addAnnotatedClass(Registrant.class)
 				.addAnnotatedClass(Submission.class)
+				.addAnnotatedClass(Growth.class)
 				.addProperties(props);
 			StandardServiceRegistryBuilder builder = new StandardServiceRegistryBuilder()
 				.applySettings(config.getProperties())
@@ -0,0 +1,94 @@
+package com.ashwin.fri.stocks.neural;
+
+import java.io.Serializable;
+
+/**
+ * A learning rate schedule adjusts the learning rate that is passed to the
+ * network as training progresses. Large steps early on move the weights
+ * quickly towards a minimum, while smaller steps later keep them from
+ * oscillating around it.
+ * 
+ * @author ashwin
+ */
+public abstract class LearningRateSchedule implements Serializable {
+	
+	private static final long serialVersionUID = 2460861612225283640L;
+	
+	/**
+	 * Returns the learning rate that should be used for the specified step.
+	 * 
+	 * @param rate initial learning rate
+	 * @param step number of updates made so far, starting at one
+	 * @return scheduled learning rate
+	 */
+	public abstract double getRate(double rate, long step);
+	
+	/**
+	 * @return a schedule that always uses the initial learning rate
+	 */
+	public static LearningRateSchedule constant() {
+		return new LearningRateSchedule() {
+			private static final long serialVersionUID = -3542357016325187375L;
+			
+			@Override
+			public double getRate(double rate, long step) {
+				return rate;
+			}
+		};
+	}
+	
+	/**
+	 * Returns a schedule that multiplies the learning rate by a factor every
+	 * interval steps.
+	 * 
+	 * @param factor
+	 * @param interval
+	 * @return schedule
+	 */
+	public static LearningRateSchedule step(final double factor, final long interval) {
+		return new LearningRateSchedule() {
+			private static final long serialVersionUID = 7015924811718218004L;
+			
+			@Override
+			public double getRate(double rate, long step) {
+				return rate * Math.pow(factor, (step - 1) / interval);
+			}
+		};
+	}
+	
+	/**
+	 * Returns a schedule that decays the learning rate exponentially, so that
+	 * it is multiplied by the decay every step.
+	 * 
+	 * @param decay
+	 * @return schedule
+	 */
+	public static LearningRateSchedule exponential(final double decay) {
+		return new LearningRateSchedule() {
+			private static final long serialVersionUID = -5120474520768306950L;
+			
+			@Override
+			public double getRate(double rate, long step) {
+				return rate * Math.pow(decay, step - 1);
+			}
+		};
+	}
+	
+	/**
+	 * Returns a schedule that decays the learning rate in inverse proportion
+	 * to the number of steps, rate / (1 + decay * step).
+	 * 
+	 * @param decay
+	 * @return schedule
+	 */
+	public static LearningRateSchedule inverse(final double decay) {
+		return new LearningRateSchedule() {
+			private static final long serialVersionUID = 4322785339011931268L;
+			
+			@Override
+			public double getRate(double rate, long step) {
+				return rate / (1 + decay * (step - 1));
+			}
+		};
+	}
+}
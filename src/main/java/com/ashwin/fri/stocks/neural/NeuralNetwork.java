@@ -2,15 +2,18 @@ package com.ashwin.fri.stocks.neural;
 
 import java.io.Serializable;
 import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.List;
 
 public class NeuralNetwork implements Serializable {
 	
-	private static final long serialVersionUID = -4747208554472473154L;
-
+	private static final long serialVersionUID = -2811621833675274226L;
+	
 	private Neuron[][] _neurons;
 	
+	private Optimizer _optimizer;
+	private LearningRateSchedule _schedule;
+	private long _step;
+	
 	public NeuralNetwork(int... nodes) {
 		_neurons = new Neuron[nodes.length - 1][];
 		for(int i = 0; i < _neurons.length; i++) {
@@ -18,46 +21,134 @@ public class NeuralNetwork implements Serializable {
 			for(int j = 0; j < _neurons[i].length; j++)
 				_neurons[i][j] = new Neuron(nodes[i]);
 		}
+		
+		_optimizer = Optimizer.SGD;
+		_schedule  = LearningRateSchedule.constant();
+	}
+	
+	/**
+	 * Creates a deep copy of the specified network. Training the copy does not
+	 * affect the original network and vice versa.
+	 * 
+	 * @param network
+	 */
+	public NeuralNetwork(NeuralNetwork network) {
+		_neurons = new Neuron[network._neurons.length][];
+		for(int i = 0; i < _neurons.length; i++) {
+			_neurons[i] = new Neuron[network._neurons[i].length];
+			for(int j = 0; j < _neurons[i].length; j++)
+				_neurons[i][j] = new Neuron(network._neurons[i][j]);
+		}
+		
+		_optimizer = network._optimizer;
+		_schedule  = network._schedule;
+		_step      = network._step;
 	}
 	
 	public int getNumberOfInputs() {
-		return _neurons[0][0].getWeights().size() - 1;
+		return _neurons[0][0].size() - 1;
+	}
+	
+	/**
+	 * Returns the shape of the network, which is the number of inputs followed by the
+	 * number of neurons in each layer.
+	 * 
+	 * @return layer sizes
+	 */
+	public int[] getLayerSizes() {
+		int[] sizes = new int[_neurons.length + 1];
+		sizes[0] = getNumberOfInputs();
+		for(int i = 0; i < _neurons.length; i++)
+			sizes[i+1] = _neurons[i].length;
+		return sizes;
+	}
+	
+	/**
+	 * Returns the layers of neurons in the network, from the input layer
+	 * to the output layer.
+	 * 
+	 * @return neurons
+	 */
+	Neuron[][] getLayers() {
+		return _neurons;
+	}
+	
+	public Optimizer getOptimizer() {
+		return _optimizer;
+	}
+	
+	/**
+	 * Changes the optimizer that is used to update the weights of the network.
+	 * The state of the previous optimizer is discarded.
+	 * 
+	 * @param optimizer
+	 */
+	public void setOptimizer(Optimizer optimizer) {
+		_optimizer = optimizer;
+		_step = 0;
+		for(Neuron[] layer : _neurons)
+			for(Neuron neuron : layer)
+				neuron.reset();
+	}
+	
+	public LearningRateSchedule getSchedule() {
+		return _schedule;
+	}
+	
+	public void setSchedule(LearningRateSchedule schedule) {
+		_schedule = schedule;
 	}
 	
 	public void backpropagate(List<Double> inputs, List<Double> target, double rate) {
+		double[] in = new double[inputs.size()];
+		for(int i = 0; i < in.length; i++)
+			in[i] = inputs.get(i);
+		
+		double[] out = new double[target.size()];
+		for(int i = 0; i < out.length; i++)
+			out[i] = target.get(i);
+		
+		backpropagate(in, out, rate);
+	}
+	
+	public void backpropagate(double[] inputs, double[] target, double rate) {
 		// Step 1: Apply to the inputs to the network and determine the output of
 		// each neuron in the network. Save these outputs into a forward matrix.
-		Double[][] outputs = new Double[_neurons.length+1][];
-		outputs[0] = inputs.toArray(new Double[inputs.size()]);	
+		double[][] outputs = new double[_neurons.length+1][];
+		outputs[0] = inputs;
 		for(int i = 0; i < _neurons.length; i++) {
-			outputs[i+1] = new Double[_neurons[i].length];
+			outputs[i+1] = new double[_neurons[i].length];
 			for(int j = 0; j < _neurons[i].length; j++)
-				outputs[i+1][j] = _neurons[i][j].getActionPotential(Arrays.asList(outputs[i]));
+				outputs[i+1][j] = _neurons[i][j].getActionPotential(outputs[i]);
 		}
 		
+		// The learning rate of this step is determined by the learning rate schedule.
+		_step++;
+		double scheduled = _schedule.getRate(rate, _step);
+		
 		// Step 2: Propagate errors back down through the network and change the weights.
-		Double[][] errors = new Double[_neurons.length][];
+		double[][] errors = new double[_neurons.length][];
 		for(int i = errors.length - 1; i >= 0; i--) {
-			errors[i] = new Double[_neurons[i].length];
+			errors[i] = new double[_neurons[i].length];
+			double[] delta = new double[outputs[i].length + 1];
 			for(int j = 0; j < errors[i].length; j++) {
 				if(i == errors.length - 1) {
 					// If the neuron is an output node, then the error is based on the target
 					// values specified in the method parameters.
-					errors[i][j] = outputs[i+1][j] * (1 - outputs[i+1][j]) * (target.get(j) - outputs[i+1][j]);
+					errors[i][j] = outputs[i+1][j] * (1 - outputs[i+1][j]) * (target[j] - outputs[i+1][j]);
 				} else {
 					double sigma = 0.0;
 					for(int k = 0; k < _neurons[i+1].length; k++)
-						sigma += _neurons[i+1][k].getWeights().get(j) * errors[i+1][k];
+						sigma += _neurons[i+1][k].getWeights()[j] * errors[i+1][k];
 					errors[i][j] = outputs[i+1][j] * (1 - outputs[i+1][j]) * sigma;
 				}
 				
-				List<Double> delta   = new ArrayList<Double>();
-				List<Double> weights = _neurons[i][j].getWeights();
-				for(int k = 0; k < weights.size(); k++)
-					delta.add((k == weights.size() - 1) ? 
-							weights.get(k) + rate * errors[i][j] :
-							weights.get(k) + rate * errors[i][j] * outputs[i][k]);
-				_neurons[i][j].setWeights(delta);
+				// The delta of each weight is the error of the neuron times the input
+				// along that weight. The bias is the last weight and has no input.
+				for(int k = 0; k < delta.length - 1; k++)
+					delta[k] = errors[i][j] * outputs[i][k];
+				delta[delta.length - 1] = errors[i][j];
+				_neurons[i][j].update(_optimizer, delta, scheduled, _step);
 			}
 		}
 	}
@@ -73,6 +164,24 @@ public class NeuralNetwork implements Serializable {
 		return execute(_neurons.length - 1, inputs);
 	}
 	
+	/**
+	 * Executes the entire neural net on a primitive input vector and returns
+	 * the output of the top most layer in the net.
+	 * 
+	 * @param inputs
+	 * @return
+	 */
+	public double[] execute(double[] inputs) {
+		double[] in = inputs;
+		for(int i = 0; i < _neurons.length; i++) {
+			double[] out = new double[_neurons[i].length];
+			for(int j = 0; j < out.length; j++)
+				out[j] = _neurons[i][j].getActionPotential(in);
+			in = out;
+		}
+		return in;
+	}
+	
 	/**
 	 * Executes the neural net up to the specified layer and returns
 	 * the output of the top most layer.
@@ -89,5 +198,5 @@ public class NeuralNetwork implements Serializable {
 			out.add(_neurons[layer][i].getActionPotential(in));
 		return out;
 	}
-	
-}
\ No newline at end of file
+
+}
@@ -1,7 +1,6 @@
 package com.ashwin.fri.stocks.neural;
 
 import java.io.Serializable;
-import java.util.ArrayList;
 import java.util.List;
 
 /**
@@ -11,41 +10,106 @@ import java.util.List;
  * action potential of the neuron. This action potential is used as
  * inputs for neurons in the next layer of the neural net.
  * 
+ * The weights are stored in a primitive array, with the bias as the last
+ * element. The neuron also keeps the state of the optimizer that updates
+ * its weights in arrays of the same length, so that each weight and its
+ * optimizer state live side by side.
+ * 
  * @author ashwin
  */
 public class Neuron implements Serializable {
 	
-	private static final long serialVersionUID = -7557746719637915288L;
-
-	/** 
-	 * The slope parameter is a property of the sigmoid function. 
+	private static final long serialVersionUID = -2914686607378666353L;
+	
+	/**
+	 * The slope parameter is a property of the sigmoid function.
 	 * The greater the slope parameter the flatter the graph and the
 	 * small the slope parameter the steeper the graph is.
 	 */
 	private static final double SLOPE_PARAMETER = 1.0;
 	
-	private List<Double> _weights;
+	private double[] _weights;
+	private double[] _first, _second;
 	
 	public Neuron(int inputs) {
-		_weights = new ArrayList<Double>();
-		for(int i = 0; i < inputs + 1; i++)
-			_weights.add(Math.random() * 2 - 1);
+		_weights = new double[inputs + 1];
+		for(int i = 0; i < _weights.length; i++)
+			_weights[i] = Math.random() * 2 - 1;
+	}
+	
+	/**
+	 * Creates a neuron with a copy of the specified weights, with the bias as the
+	 * last element.
+	 * 
+	 * @param weights
+	 */
+	public Neuron(double[] weights) {
+		_weights = weights.clone();
 	}
 	
-	public Neuron(List<Double> weights) {
-		_weights = weights;
+	/**
+	 * Creates a deep copy of the specified neuron, including its optimizer state.
+	 * 
+	 * @param neuron
+	 */
+	public Neuron(Neuron neuron) {
+		_weights = neuron._weights.clone();
+		_first   = (neuron._first == null) ? null : neuron._first.clone();
+		_second  = (neuron._second == null) ? null : neuron._second.clone();
 	}
 	
 	public int size() {
-		return _weights.size();
+		return _weights.length;
 	}
 	
-	public List<Double> getWeights() {
+	/**
+	 * Returns the weights of the neuron, with the bias as the last element. This is
+	 * the array that the neuron trains, not a copy, so that training and quantization
+	 * don't copy the weights of every neuron they read. Callers must not modify it.
+	 * 
+	 * @return weights
+	 */
+	public double[] getWeights() {
 		return _weights;
 	}
 	
-	public void setWeights(List<Double> weights) {
-		_weights = weights;
+	/**
+	 * Replaces the weights of the neuron with a copy of the specified weights, and
+	 * discards the optimizer state of the previous weights.
+	 * 
+	 * @param weights
+	 */
+	public void setWeights(double[] weights) {
+		_weights = weights.clone();
+		reset();
+	}
+	
+	/**
+	 * Discards the optimizer state of the neuron, for example when the optimizer of
+	 * the network changes. The weights are unchanged.
+	 */
+	void reset() {
+		_first = null;
+		_second = null;
+	}
+	
+	/**
+	 * Updates the weights of the neuron in the direction of the specified delta,
+	 * which is the negative gradient of the error with respect to each weight.
+	 * The optimizer state arrays are allocated the first time they are needed.
+	 * 
+	 * @param optimizer
+	 * @param delta negative gradient of the error
+	 * @param rate learning rate
+	 * @param step number of updates made so far, starting at one
+	 */
+	void update(Optimizer optimizer, double[] delta, double rate, long step) {
+		if(_first == null && optimizer.getStateSize() > 0)
+			_first = new double[_weights.length];
+		if(_second == null && optimizer.getStateSize() > 1)
+			_second = new double[_weights.length];
+		
+		optimizer.update(_weights, delta, _first, _second, rate, step);
 	}
 	
 	/**
@@ -57,10 +121,36 @@ public class Neuron implements Serializable {
 	 * @return action potential
 	 */
 	public double getActionPotential(List<Double> inputs) {
-		double sum = _weights.get(_weights.size() - 1);
+		double sum = _weights[_weights.length - 1];
 		for(int i = 0; i < inputs.size(); i++)
-			sum += inputs.get(i) * _weights.get(i);
-				
+			sum += inputs.get(i) * _weights[i];
+		
+		return sigmoid(sum);
+	}
+	
+	/**
+	 * Returns the action potential of the neuron for a primitive input vector.
+	 * 
+	 * @param inputs neural inputs
+	 * @return action potential
+	 */
+	public double getActionPotential(double[] inputs) {
+		double sum = _weights[_weights.length - 1];
+		for(int i = 0; i < inputs.length; i++)
+			sum += inputs[i] * _weights[i];
+		
+		return sigmoid(sum);
+	}
+	
+	/**
+	 * Runs the weighted sum of a neuron through the sigmoid function. This is
+	 * shared with the quantized network so that both produce potentials on the
+	 * exact same curve.
+	 * 
+	 * @param sum weighted sum of inputs and bias
+	 * @return action potential
+	 */
+	static double sigmoid(double sum) {
 		return 1.0 / (1 + Math.pow(Math.E, -sum * Neuron.SLOPE_PARAMETER));
 	}
 }
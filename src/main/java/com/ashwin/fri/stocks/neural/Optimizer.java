@@ -0,0 +1,108 @@
+package com.ashwin.fri.stocks.neural;
+
+/**
+ * An optimizer decides how the weights of a neuron are updated given the
+ * negative gradient of the error with respect to each weight (the delta).
+ * Plain stochastic gradient descent moves each weight by a fixed fraction of
+ * its delta. The other optimizers keep a running state for every weight,
+ * which lets them converge in far fewer passes over the training data.
+ * 
+ * The state is stored by the neuron in up to two arrays that are parallel
+ * to its weights; getStateSize() tells the neuron how many it needs.
+ * 
+ * @author ashwin
+ */
+public enum Optimizer {
+	
+	/** Stochastic gradient descent. */
+	SGD(0) {
+		@Override
+		void update(double[] weights, double[] delta, double[] first, double[] second, double rate, long step) {
+			for(int i = 0; i < weights.length; i++)
+				weights[i] += rate * delta[i];
+		}
+	},
+	
+	/** Gradient descent with classical momentum. */
+	MOMENTUM(1) {
+		@Override
+		void update(double[] weights, double[] delta, double[] first, double[] second, double rate, long step) {
+			for(int i = 0; i < weights.length; i++) {
+				first[i] = MOMENTUM_DECAY * first[i] + rate * delta[i];
+				weights[i] += first[i];
+			}
+		}
+	},
+	
+	/**
+	 * Gradient descent with Nesterov momentum. Instead of evaluating the gradient
+	 * at the look-ahead position, the weights are kept at the look-ahead position,
+	 * which makes the update a simple correction of the classical momentum step.
+	 */
+	NESTEROV(1) {
+		@Override
+		void update(double[] weights, double[] delta, double[] first, double[] second, double rate, long step) {
+			for(int i = 0; i < weights.length; i++) {
+				double previous = first[i];
+				first[i] = MOMENTUM_DECAY * first[i] + rate * delta[i];
+				weights[i] += (1 + MOMENTUM_DECAY) * first[i] - MOMENTUM_DECAY * previous;
+			}
+		}
+	},
+	
+	/** Gradient descent scaled by a running average of the squared gradient. */
+	RMSPROP(1) {
+		@Override
+		void update(double[] weights, double[] delta, double[] first, double[] second, double rate, long step) {
+			for(int i = 0; i < weights.length; i++) {
+				first[i] = RMSPROP_DECAY * first[i] + (1 - RMSPROP_DECAY) * delta[i] * delta[i];
+				weights[i] += rate * delta[i] / (Math.sqrt(first[i]) + EPSILON);
+			}
+		}
+	},
+	
+	/** Adaptive moment estimation with bias corrected first and second moments. */
+	ADAM(2) {
+		@Override
+		void update(double[] weights, double[] delta, double[] first, double[] second, double rate, long step) {
+			double c1 = 1 - Math.pow(ADAM_FIRST_DECAY, step);
+			double c2 = 1 - Math.pow(ADAM_SECOND_DECAY, step);
+			for(int i = 0; i < weights.length; i++) {
+				first[i]  = ADAM_FIRST_DECAY * first[i] + (1 - ADAM_FIRST_DECAY) * delta[i];
+				second[i] = ADAM_SECOND_DECAY * second[i] + (1 - ADAM_SECOND_DECAY) * delta[i] * delta[i];
+				weights[i] += rate * (first[i] / c1) / (Math.sqrt(second[i] / c2) + EPSILON);
+			}
+		}
+	};
+	
+	private static final double MOMENTUM_DECAY    = 0.9;
+	private static final double RMSPROP_DECAY     = 0.9;
+	private static final double ADAM_FIRST_DECAY  = 0.9;
+	private static final double ADAM_SECOND_DECAY = 0.999;
+	private static final double EPSILON           = 1e-8;
+	
+	private int _stateSize;
+	
+	private Optimizer(int stateSize) {
+		_stateSize = stateSize;
+	}
+	
+	/**
+	 * @return number of state arrays the optimizer needs per neuron
+	 */
+	public int getStateSize() {
+		return _stateSize;
+	}
+	
+	/**
+	 * Updates the weights in place.
+	 * 
+	 * @param weights weights of the neuron
+	 * @param delta negative gradient of the error with respect to each weight
+	 * @param first first state array, or null if the state size is zero
+	 * @param second second state array, or null if the state size is less than two
+	 * @param rate learning rate
+	 * @param step number of updates made so far, starting at one
+	 */
+	abstract void update(double[] weights, double[] delta, double[] first, double[] second, double rate, long step);
+}
@@ -0,0 +1,207 @@
+package com.ashwin.fri.stocks.neural;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A quantized neural network is a read-only copy of a trained neural network
+ * whose weights are stored as 8-bit integers. Each layer has a single scale
+ * that maps its integer weights back onto the real line. Layer inputs are
+ * quantized on the fly, so that the weighted sum of every neuron is computed
+ * as an integer dot product and only rescaled once at the very end.
+ * 
+ * The inputs of the first layer can be normalized before they are quantized, so
+ * that a column with a wide range doesn't crush the quanta of the other columns.
+ * The normalization is folded into the weights and biases of the first layer, so
+ * the network still takes the same inputs as the network it was quantized from.
+ * 
+ * A quantized network cannot be trained. It is meant to replace a trained
+ * network when it is only used to serve predictions, because it needs roughly
+ * a byte per weight instead of a boxed double per weight.
+ * 
+ * @author ashwin
+ */
+public class QuantizedNeuralNetwork implements Serializable {
+	
+	private static final long serialVersionUID = 3180318259418871541L;
+	
+	/** The largest magnitude that can be represented by a quantized value. */
+	private static final int MAX_QUANTUM = 127;
+	
+	private byte[][][] _weights;
+	private double[][] _biases;
+	private double[] _scales;
+	private double[] _means, _deviations;
+	
+	/**
+	 * Quantizes the weights of the specified network. The biases are kept in
+	 * full precision, because there is only one per neuron and they are added
+	 * after the integer dot product has been rescaled.
+	 * 
+	 * @param network trained network
+	 */
+	public QuantizedNeuralNetwork(NeuralNetwork network) {
+		this(network, null, null);
+	}
+	
+	/**
+	 * Quantizes the weights of the specified network, which normalizes every
+	 * input by the specified mean and deviation before it is quantized. Each
+	 * weight of the first layer is multiplied by the deviation of its input,
+	 * and the bias absorbs the means, so that the outputs are unchanged up to
+	 * quantization.
+	 * 
+	 * @param network trained network
+	 * @param means mean of each input, or null to quantize the raw inputs
+	 * @param deviations deviation of each input
+	 */
+	public QuantizedNeuralNetwork(NeuralNetwork network, double[] means, double[] deviations) {
+		Neuron[][] layers = network.getLayers();
+		_weights = new byte[layers.length][][];
+		_biases  = new double[layers.length][];
+		_scales  = new double[layers.length];
+		_means = means;
+		_deviations = deviations;
+		
+		for(int i = 0; i < layers.length; i++) {
+			double[][] folded = new double[layers[i].length][];
+			for(int j = 0; j < layers[i].length; j++)
+				folded[j] = (i == 0 && means != null) ?
+						fold(layers[i][j].getWeights(), means, deviations) :
+						layers[i][j].getWeights();
+			
+			// Each layer is scaled by the weight with the largest magnitude in
+			// the layer, so that this weight maps onto the largest quantum.
+			double max = 0.0;
+			for(double[] weights : folded)
+				for(int k = 0; k < weights.length - 1; k++)
+					max = Math.max(max, Math.abs(weights[k]));
+			_scales[i] = (max == 0) ? 1.0 : max / MAX_QUANTUM;
+			
+			_weights[i] = new byte[layers[i].length][];
+			_biases[i]  = new double[layers[i].length];
+			for(int j = 0; j < layers[i].length; j++) {
+				double[] weights = folded[j];
+				_weights[i][j] = new byte[weights.length - 1];
+				for(int k = 0; k < _weights[i][j].length; k++)
+					_weights[i][j][k] = (byte) Math.round(weights[k] / _scales[i]);
+				_biases[i][j] = weights[weights.length - 1];
+			}
+		}
+	}
+	
+	/**
+	 * Returns the weights of a neuron that takes normalized inputs, where the
+	 * last weight is the bias. Since w * x + b = (w * d) * z + (w * m + b) for
+	 * the normalized input z = (x - m) / d, the weights are multiplied by the
+	 * deviations and the bias absorbs the means.
+	 * 
+	 * @param weights weights of a neuron that takes raw inputs
+	 * @param means
+	 * @param deviations
+	 * @return
+	 */
+	private static double[] fold(double[] weights, double[] means, double[] deviations) {
+		double[] folded = new double[weights.length];
+		double bias = weights[weights.length - 1];
+		for(int k = 0; k < weights.length - 1; k++) {
+			folded[k] = weights[k] * deviations[k];
+			bias += weights[k] * means[k];
+		}
+		folded[weights.length - 1] = bias;
+		return folded;
+	}
+	
+	public int getNumberOfInputs() {
+		return _weights[0][0].length;
+	}
+	
+	/**
+	 * Executes the entire quantized network and returns the output of the
+	 * top most layer in the net.
+	 * 
+	 * @param inputs
+	 * @return
+	 */
+	public List<Double> execute(List<Double> inputs) {
+		double[] in = new double[inputs.size()];
+		for(int i = 0; i < in.length; i++)
+			in[i] = inputs.get(i);
+		
+		double[] out = execute(in);
+		List<Double> outputs = new ArrayList<Double>();
+		for(double value : out)
+			outputs.add(value);
+		return outputs;
+	}
+	
+	/**
+	 * Executes the entire quantized network on a primitive input vector. The
+	 * inputs of each layer are quantized with a scale that maps the largest
+	 * input onto the largest quantum. The weighted sum is then accumulated in
+	 * an integer and rescaled by the product of the input and weight scales.
+	 * If the network normalizes its inputs, then they are normalized first.
+	 * 
+	 * @param inputs
+	 * @return
+	 */
+	public double[] execute(double[] inputs) {
+		double[] in = inputs;
+		if(_means != null) {
+			in = new double[inputs.length];
+			for(int k = 0; k < in.length; k++)
+				in[k] = (inputs[k] - _means[k]) / _deviations[k];
+		}
+		byte[] quanta = new byte[in.length];
+		
+		for(int i = 0; i < _weights.length; i++) {
+			double max = 0.0;
+			for(int k = 0; k < in.length; k++)
+				max = Math.max(max, Math.abs(in[k]));
+			double scale = (max == 0) ? 1.0 : max / MAX_QUANTUM;
+			
+			if(quanta.length < in.length)
+				quanta = new byte[in.length];
+			for(int k = 0; k < in.length; k++)
+				quanta[k] = (byte) Math.round(in[k] / scale);
+			
+			double[] out = new double[_weights[i].length];
+			for(int j = 0; j < out.length; j++) {
+				byte[] weights = _weights[i][j];
+				int dot = 0;
+				for(int k = 0; k < weights.length; k++)
+					dot += weights[k] * quanta[k];
+				out[j] = Neuron.sigmoid(dot * _scales[i] * scale + _biases[i][j]);
+			}
+			in = out;
+		}
+		
+		return in;
+	}
+	
+	/**
+	 * Returns the mean absolute difference between the outputs of this network
+	 * and the outputs of the network it was quantized from over the specified
+	 * held-out inputs. This is the accuracy that is lost by quantization.
+	 * 
+	 * @param network original network
+	 * @param holdout held-out input vectors
+	 * @return mean absolute error
+	 */
+	public double getQuantizationError(NeuralNetwork network, List<double[]> holdout) {
+		if(holdout.isEmpty())
+			return 0.0;
+		
+		double error = 0.0;
+		int count = 0;
+		for(double[] inputs : holdout) {
+			double[] expected = network.execute(inputs);
+			double[] actual   = execute(inputs);
+			for(int i = 0; i < expected.length; i++, count++)
+				error += Math.abs(expected[i] - actual[i]);
+		}
+		return error / count;
+	}
+
+}
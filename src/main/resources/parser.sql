@@ -58,4 +58,34 @@ SET
 	footnote = nullif(@footnote, '');
 SET foreign_key_checks = 1;
 
+-- Precompute the growth rates of the submissions that have just been loaded, with the
+-- same rules as Forecast.getGrowthVector. The numbers of each tag are ordered by duration
+-- and then from the latest to the earliest end date, and the growth rate of each duration
+-- is calculated between its latest number and the number that follows it. Values are
+-- converted to doubles first, because decimal division is rounded to a few digits.
+-- Window functions require MySQL 8.0 or later.
+INSERT IGNORE INTO growth (adsh, name, duration, sic, filed, growth)
+SELECT p.adsh, p.name, p.duration, p.sic, p.filed,
+	IF(p.quarters <= 1, p.growth, SIGN(p.growth) * POW(ABS(p.growth), 1E0 / p.quarters))
+FROM (
+	SELECT g.adsh, g.name, g.duration, g.sic, g.filed,
+		1E0 + (g.vn - g.vo) / ABS(IF(g.vo = 0, 1E0, g.vo)) AS growth,
+		FLOOR(TIMESTAMPDIFF(SECOND, g.eo, g.en) * 1000E0 / 31556900000E0 * 4 + 0.5E0) AS quarters
+	FROM (
+		SELECT n.adsh, n.name, n.duration, r.sic, s.filed, n.value * 1E0 AS vn, n.ddate AS en,
+			LEAD(n.value * 1E0) OVER t AS vo,
+			LEAD(n.ddate) OVER t AS eo,
+			ROW_NUMBER() OVER d AS position
+		FROM numbers n
+		JOIN submissions s ON s.adsh = n.adsh
+		JOIN registrants r ON r.cik = s.cik
+		WHERE n.value IS NOT NULL
+			AND n.adsh NOT IN (SELECT DISTINCT adsh FROM growth)
+		WINDOW
+			t AS (PARTITION BY n.adsh, n.name ORDER BY n.duration ASC, n.ddate DESC, n.version, n.units, n.coreg),
+			d AS (PARTITION BY n.adsh, n.name, n.duration ORDER BY n.ddate DESC, n.version, n.units, n.coreg)
+	) g
+	WHERE g.position = 1 AND g.vo IS NOT NULL
+) p;
+
 SELECT TABLE_NAME, TABLE_ROWS FROM `information_schema`.`tables` WHERE `table_schema` = 'sec';
\ No newline at end of file